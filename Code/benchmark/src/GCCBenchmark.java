@@ -0,0 +1,205 @@
+import ij.Menus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * End to end benchmark of the counting pipeline on synthetic plates (see GCCSyntheticPlate),
+ * without the user interface: threshold, labeling, size filter, count, per region count and cell table.
+ * These steps are those of GCCPipeline, which the plugin runs too, with the default parameters of each method.
+ * Only the cell area range and the minimal distance are set from the plate, since they describe the cells.
+ * Run from Code/ after "mvn compile":
+ * javac -cp target/classes:ij.jar -d target/benchmark benchmark/src/*.java
+ * java -Xmx4g -cp target/classes:target/benchmark:ij.jar GCCBenchmark [-sizes 1,4,16] [-cells 100,1000,10000] [-regions 1,16]
+ *  [-repeats 3] [-out results.csv] [-baseline benchmark/baseline.csv]
+ * Sizes are in megapixels, up to 1000 for a 1 gigapixel plate. Sizes that need more heap than -Xmx are skipped.
+ * With -baseline, runs more than 25% slower than the baseline, or whose count accuracy or region error
+ * is more than 0.02 further from exact than in the baseline, are reported and the exit code is 1.
+ * "Auto Local Threshold" is a Fiji plugin, it is skipped when its command is not installed.
+ */
+class GCCBenchmark {
+	private static final String[] METHODS = {"Auto Threshold", "Auto Local Threshold", "Chastagnier Threshold"}; // by methodSelected
+	private static final String HEADER = "Method;Megapixels;Cells;Regions;Wall(ms);PeakHeap(MB);Allocated(MB);AllocationRate(MB/s);Detected;Expected;Accuracy;RegionError";
+	private static final double REGRESSION_RATIO = 1.25;
+	private static final double ACCURACY_TOLERANCE = 0.02;
+	// heap needed by a run, about the peak heap of the baseline runs: images and labels, then the outlines of the cells
+	private static final long HEAP_BYTES_PER_PIXEL = 40, HEAP_BYTES_PER_CELL = 2048;
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = {1, 4, 16, 64, 256, 1000};
+		int[] cells = {100, 1000, 10000, 100000, 1000000};
+		int[] regions = {1, 16};
+		int repeats = 3;
+		String out = null, baseline = null;
+		for (int i = 0; i+1 < args.length; i += 2) {
+			if (args[i].equals("-sizes")) sizes = parseInts(args[i+1]);
+			else if (args[i].equals("-cells")) cells = parseInts(args[i+1]);
+			else if (args[i].equals("-regions")) regions = parseInts(args[i+1]);
+			else if (args[i].equals("-repeats")) repeats = Integer.parseInt(args[i+1]);
+			else if (args[i].equals("-out")) out = args[i+1];
+			else if (args[i].equals("-baseline")) baseline = args[i+1];
+		}
+		Map<String, String[]> baselineRuns = baseline != null ? readBaseline(baseline) : null;
+		PrintWriter writer = out != null ? new PrintWriter(new FileWriter(out)) : null;
+		System.out.println(HEADER);
+		if (writer != null) writer.println(HEADER);
+		boolean autoLocal = Menus.getCommands() != null && Menus.getCommands().get("Auto Local Threshold") != null;
+		if (!autoLocal) System.out.println("SKIPPED Auto Local Threshold: the Fiji plugin is not installed");
+		int nRegressions = 0;
+		for (int size : sizes) {
+			int side = (int)Math.round(Math.sqrt(size*1e6));
+			for (int nCells : cells) {
+				if ((double)side*side/nCells < 64) continue; // cells would not fit
+				long neededMb = ((long)side*side*HEAP_BYTES_PER_PIXEL+nCells*HEAP_BYTES_PER_CELL) >> 20;
+				if (neededMb > Runtime.getRuntime().maxMemory() >> 20) {
+					System.out.println("SKIPPED "+size+" megapixels, "+nCells+" cells: needs about "+neededMb+" MB of heap");
+					continue;
+				}
+				GCCSyntheticPlate plate = new GCCSyntheticPlate(side, side, nCells, 42);
+				for (int nRegions : regions) {
+					for (int m = 0; m < METHODS.length; m++) {
+						if (m == 1 && !autoLocal) continue;
+						Result best = null;
+						for (int r = 0; r < repeats; r++) {
+							Result res = run(plate, m, nRegions);
+							if (best == null || res.wallMs < best.wallMs) best = res;
+						}
+						String key = METHODS[m]+";"+size+";"+nCells+";"+nRegions;
+						String line = key+";"+best.wallMs+";"+best.peakHeapMb+";"+best.allocatedMb+";"+Math.round(best.allocatedMb/(best.wallMs/1000.0))
+								+";"+best.detected+";"+plate.getCellCount()+";"+best.accuracy+";"+best.regionError;
+						System.out.println(line);
+						if (writer != null) writer.println(line);
+						String[] ref = baselineRuns != null ? baselineRuns.get(key) : null;
+						if (ref == null) continue;
+						double refWallMs = Double.parseDouble(ref[4]);
+						if (best.wallMs > REGRESSION_RATIO*refWallMs) {
+							System.out.println("REGRESSION "+key+": "+best.wallMs+" ms, baseline "+ref[4]+" ms");
+							nRegressions++;
+						}
+						double refAccuracy = Double.parseDouble(ref[10]), refRegionError = Double.parseDouble(ref[11]);
+						if (Math.abs(best.accuracy-1) > Math.abs(refAccuracy-1)+ACCURACY_TOLERANCE
+								|| best.regionError > refRegionError+ACCURACY_TOLERANCE) {
+							System.out.println("REGRESSION "+key+": accuracy "+best.accuracy+", region error "+best.regionError
+									+", baseline "+ref[10]+", "+ref[11]);
+							nRegressions++;
+						}
+					}
+				}
+			}
+		}
+		if (writer != null) writer.close();
+		if (nRegressions > 0) System.exit(1);
+	}
+
+	private static class Result {
+		long wallMs;
+		long peakHeapMb, allocatedMb;
+		int detected;
+		double accuracy; // detected/expected
+		double regionError; // mean absolute error of the per region counts, relative to the expected counts
+	}
+
+	/** Same steps as GCCProcess.process(true) then saveResults(), with the default parameters of method. */
+	private static Result run(GCCSyntheticPlate plate, int method, int nRegions) throws IOException {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		long allocStart = getAllocatedBytes();
+		long start = System.nanoTime();
+
+		GCCProfile p = GCCProfile.getDefaults();
+		p.set("methodSelected", method);
+		double[] sizeRange = {plate.getMinArea(), plate.getMaxArea()};
+		double minDistance = plate.getMinRadius();
+		ImageProcessor ip = plate.getImage().duplicate();
+		Calibration cal = new Calibration();
+		GCCBitMask mask = new GCCPipeline().computeMask(ip, cal, 1, p);
+		GCCLabeling cells = GCCPipeline.labelCells(mask, sizeRange, GCCPipeline.parseRange(p.get("cellCircularity")), 1);
+		GCCPipeline.Counts counts = GCCPipeline.countCells(cells, 1, 1, 0, 0, cal, null, minDistance, sizeRange);
+		Rectangle[] regions = plate.getRegions(nRegions);
+		int[] regionCounts = new int[nRegions];
+		for (int r = 0; r < nRegions; r++) {
+			GCCSpans region = GCCSpans.fromRoi(new ij.gui.Roi(regions[r]), ip.getWidth(), ip.getHeight());
+			regionCounts[r] = GCCPipeline.countInRegion(region, counts.x, counts.y, counts.count);
+		}
+		File table = File.createTempFile("GCCBenchmark", ".gcct");
+		GCCCellTableWriter writer = GCCCellTableWriter.open(table.getPath(), true);
+		int detected = 0;
+		try {
+			for (int c = 0; c < cells.getCount(); c++) {
+				writer.writeRow(c+1, counts.x[c], counts.y[c], counts.area[c], cells.getArea(c), cells.getCircularity(c),
+						counts.duplicate[c], counts.nucleusInCell[c], counts.count[c], counts.nucleusInCellPos[c], null);
+				detected += counts.count[c];
+			}
+		} finally {
+			writer.close();
+			table.delete();
+		}
+
+		Result res = new Result();
+		res.wallMs = (System.nanoTime()-start)/1000000;
+		res.allocatedMb = (getAllocatedBytes()-allocStart) >> 20;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		res.peakHeapMb = peak >> 20;
+		res.detected = detected;
+		res.accuracy = (double)res.detected/plate.getCellCount();
+		double error = 0;
+		for (int r = 0; r < nRegions; r++) {
+			int expected = plate.getCellCount(regions[r]);
+			error += Math.abs(regionCounts[r]-expected)/(double)Math.max(expected, 1);
+		}
+		res.regionError = error/nRegions;
+		return res;
+	}
+
+	/** Bytes allocated by the benchmark thread, worker threads of the pipeline are not included. */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] res = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			res[i] = Integer.parseInt(parts[i].trim());
+		}
+		return res;
+	}
+
+	/** Lines of a previous output split in columns, by method, size, cells and regions. */
+	private static Map<String, String[]> readBaseline(String path) throws IOException {
+		Map<String, String[]> runs = new HashMap<String, String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line = reader.readLine(); // header
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(";");
+				if (parts.length < 12) continue;
+				runs.put(parts[0]+";"+parts[1]+";"+parts[2]+";"+parts[3], parts);
+			}
+		} finally {
+			reader.close();
+		}
+		return runs;
+	}
+}
@@ -0,0 +1,117 @@
+import ij.process.ByteProcessor;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+/**
+ * Synthetic 8-bit plate with a known number of round cells, for benchmarks.
+ * Cells are bright disks on a noisy background with a horizontal gradient. Each one is placed,
+ * with some jitter, in its own cell of a grid, so cells never touch and the ground truth count is exact.
+ */
+class GCCSyntheticPlate {
+	private final int width, height;
+	private final ByteProcessor image;
+	private final int[] xCenter, yCenter, radius;
+	private final int minRadius, maxRadius;
+
+	/** Plate of width x height pixels with nCells cells, the same seed gives the same plate. */
+	GCCSyntheticPlate(int width, int height, int nCells, long seed) {
+		this.width = width;
+		this.height = height;
+		Random rnd = new Random(seed);
+		double grid = Math.sqrt((double)width*height/nCells);
+		int nx = (int)(width/grid), ny = (int)(height/grid);
+		while ((long)nx*ny < nCells) { // rounding down may leave too few grid cells
+			grid *= 0.99;
+			nx = (int)(width/grid);
+			ny = (int)(height/grid);
+		}
+		maxRadius = (int)Math.min(8, 0.35*grid);
+		if (maxRadius < 2) {
+			throw new IllegalArgumentException("Too many cells for a "+width+"x"+height+" plate");
+		}
+		minRadius = Math.max(2, (int)(0.6*maxRadius));
+		// random subset of the grid cells, drawn with a partial shuffle
+		int nGrid = nx*ny;
+		int[] order = new int[nGrid];
+		for (int i = 0; i < nGrid; i++) order[i] = i;
+		xCenter = new int[nCells];
+		yCenter = new int[nCells];
+		radius = new int[nCells];
+		int jitter = Math.max(0, (int)(grid/2)-maxRadius-1);
+		for (int c = 0; c < nCells; c++) {
+			int k = c+rnd.nextInt(nGrid-c);
+			int g = order[k];
+			order[k] = order[c];
+			order[c] = g;
+			xCenter[c] = (int)((g%nx+0.5)*grid)+(jitter > 0 ? rnd.nextInt(2*jitter+1)-jitter : 0);
+			yCenter[c] = (int)((g/nx+0.5)*grid)+(jitter > 0 ? rnd.nextInt(2*jitter+1)-jitter : 0);
+			radius[c] = minRadius+rnd.nextInt(maxRadius-minRadius+1);
+		}
+		image = new ByteProcessor(width, height);
+		byte[] pixels = (byte[])image.getPixels();
+		for (int y = 0; y < height; y++) {
+			int offset = y*width;
+			for (int x = 0; x < width; x++) {
+				pixels[offset+x] = (byte)clamp(20+30.0*x/width+4*rnd.nextGaussian());
+			}
+		}
+		for (int c = 0; c < nCells; c++) {
+			int r = radius[c];
+			for (int y = Math.max(yCenter[c]-r, 0); y <= Math.min(yCenter[c]+r, height-1); y++) {
+				for (int x = Math.max(xCenter[c]-r, 0); x <= Math.min(xCenter[c]+r, width-1); x++) {
+					int dx = x-xCenter[c], dy = y-yCenter[c];
+					if (dx*dx+dy*dy <= r*r) {
+						pixels[y*width+x] = (byte)clamp(120+30.0*x/width+6*rnd.nextGaussian());
+					}
+				}
+			}
+		}
+	}
+
+	private static int clamp(double v) {
+		return (int)Math.max(0, Math.min(255, Math.round(v)));
+	}
+
+	public ByteProcessor getImage() {
+		return image;
+	}
+
+	public int getCellCount() {
+		return xCenter.length;
+	}
+
+	/** Radius of the smallest cells (px), the centers of two cells are further apart. */
+	public int getMinRadius() {
+		return minRadius;
+	}
+
+	/** Smallest and largest possible cell areas (px), with some margin for the threshold. */
+	public double getMinArea() {
+		return 0.5*Math.PI*minRadius*minRadius;
+	}
+
+	public double getMaxArea() {
+		return 2*Math.PI*maxRadius*maxRadius;
+	}
+
+	/** n regions on a regular grid covering the plate, a small gap between them. */
+	public Rectangle[] getRegions(int n) {
+		int nx = (int)Math.ceil(Math.sqrt(n)), ny = (n+nx-1)/nx;
+		Rectangle[] regions = new Rectangle[n];
+		int w = width/nx, h = height/ny;
+		for (int i = 0; i < n; i++) {
+			regions[i] = new Rectangle(i%nx*w+w/10, i/nx*h+h/10, w*8/10, h*8/10);
+		}
+		return regions;
+	}
+
+	/** Number of cells whose center is inside region. */
+	public int getCellCount(Rectangle region) {
+		int n = 0;
+		for (int c = 0; c < xCenter.length; c++) {
+			if (region.contains(xCenter[c], yCenter[c])) n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,168 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Menus;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks GCCFilters.autoThreshold and the GCCKernels histogram against ImageJ on 8-bit and 16-bit images:
+ * every method of AutoThresholder, with and without ignore_black/ignore_white, must give the same mask.
+ * 16-bit images are thresholded on their full histogram with Li and Otsu, as Chastagnier Threshold does,
+ * and compared with their "8-bit" conversion with the other methods.
+ * The reference is the "Auto Threshold" command when it is installed (Fiji), otherwise the core AutoThresholder
+ * on the ImageJ histogram of the image. AutoThresholder only takes 256 bins, so without Fiji the full histogram
+ * cases are only checked on 16-bit images of at most 256 levels, the others are counted as skipped.
+ * Run from Code/ after "mvn compile":
+ * javac -cp target/classes:ij.jar -d target/benchmark benchmark/src/*.java
+ * java -cp target/classes:target/benchmark:ij.jar GCCThresholdCheck
+ * The exit code is 1 if a mask or a histogram differs.
+ */
+class GCCThresholdCheck {
+	private static final String AUTO_THRESHOLD = "Auto Threshold";
+
+	public static void main(String[] args) {
+		boolean fiji = Menus.getCommands() != null && Menus.getCommands().get(AUTO_THRESHOLD) != null;
+		System.out.println("Reference: "+(fiji ? "\""+AUTO_THRESHOLD+"\"" : "AutoThresholder on ImageProcessor.getHistogram"));
+		Random random = new Random(1);
+		int failures = 0, skipped = 0;
+		ImageProcessor[] images = {
+				plate(new ByteProcessor(256, 256), 10, 200, 0.05, random),
+				plate(new ByteProcessor(300, 200), 0, 255, 0.05, random),
+				plate(new ShortProcessor(256, 256), 100, 4000, 0.05, random),
+				plate(new ShortProcessor(300, 200), 0, 65535, 0.05, random),
+				plate(new ShortProcessor(200, 200), 1000, 1150, 0.05, random), // fewer levels than bins
+				// noisy, so that a level one off changes the mask
+				plate(new ShortProcessor(200, 200), 1000, 1200, 0.3, random),
+				plate(new ShortProcessor(200, 200), 0, 200, 0.3, random), // black pixels
+				plate(new ShortProcessor(200, 200), 65335, 65535, 0.3, random), // white pixels
+		};
+		for (ImageProcessor ip : images) {
+			ByteProcessor bp = byteImage(ip);
+			if (!Arrays.equals(GCCKernels.histogram((byte[])bp.getPixels()), bp.getHistogram())) {
+				System.out.println(ip.getBitDepth()+"-bit "+ip.getWidth()+"x"+ip.getHeight()+": histogram differs");
+				failures++;
+			}
+			if (ip instanceof ShortProcessor && !Arrays.equals(GCCKernels.histogram((short[])ip.getPixels()), ip.getHistogram())) {
+				System.out.println("16-bit "+ip.getWidth()+"x"+ip.getHeight()+": 16-bit histogram differs");
+				failures++;
+			}
+			for (AutoThresholder.Method method : AutoThresholder.Method.values()) {
+				for (int ignore = 0; ignore < 4; ignore++) {
+					boolean ignoreBlack = (ignore & 1) != 0, ignoreWhite = (ignore & 2) != 0;
+					byte[] expected;
+					if (!(ip instanceof ShortProcessor) || !isFullRange(method)) {
+						expected = fiji ? fijiMask(bp, method, ignoreBlack, ignoreWhite) : coreMask(bp, method, ignoreBlack, ignoreWhite);
+					} else if (fiji) {
+						expected = fijiMask(ip, method, ignoreBlack, ignoreWhite);
+					} else {
+						expected = fullRangeMask((ShortProcessor)ip, method, ignoreBlack, ignoreWhite);
+						if (expected == null) {
+							skipped++;
+							continue;
+						}
+					}
+					GCCBitMask mask = GCCFilters.autoThreshold(ip, method.name(), ignoreBlack, ignoreWhite);
+					int diff = 0;
+					for (int y = 0, i = 0; y < ip.getHeight(); y++) {
+						for (int x = 0; x < ip.getWidth(); x++, i++) {
+							if (mask.get(x, y) != (expected[i] != 0)) diff++;
+						}
+					}
+					if (diff > 0) {
+						System.out.println(ip.getBitDepth()+"-bit "+ip.getWidth()+"x"+ip.getHeight()+" "+method
+								+(ignoreBlack ? " ignore_black" : "")+(ignoreWhite ? " ignore_white" : "")+": "+diff+" pixels differ");
+						failures++;
+					}
+				}
+			}
+		}
+		if (skipped > 0) System.out.println(skipped+" full histogram cases skipped, more than 256 levels.");
+		System.out.println(failures == 0 ? "All masks and histograms match." : failures+" differences.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/** Background of level low with noise (relative to the range) and bright discs up to level high. */
+	private static ImageProcessor plate(ImageProcessor ip, int low, int high, double noise, Random random) {
+		int width = ip.getWidth(), height = ip.getHeight();
+		for (int i = 0; i < width*height; i++) {
+			ip.set(i, (int)Math.max(low, Math.min(high, low+(high-low)*0.1+random.nextGaussian()*(high-low)*noise)));
+		}
+		for (int c = 0; c < 40; c++) {
+			int cx = random.nextInt(width), cy = random.nextInt(height), r = 3+random.nextInt(8);
+			int level = (int)(low+(high-low)*(0.5+0.5*random.nextDouble()));
+			for (int y = Math.max(0, cy-r); y < Math.min(height, cy+r+1); y++) {
+				for (int x = Math.max(0, cx-r); x < Math.min(width, cx+r+1); x++) {
+					if ((x-cx)*(x-cx)+(y-cy)*(y-cy) <= r*r) ip.set(x, y, level);
+				}
+			}
+		}
+		ip.set(0, low); // the whole range is used
+		ip.set(1, high);
+		return ip;
+	}
+
+	/** 8-bit image ImageJ makes of ip, as the plugin did before thresholding. */
+	private static ByteProcessor byteImage(ImageProcessor ip) {
+		if (ip instanceof ByteProcessor) return (ByteProcessor)ip;
+		ImageProcessor copy = ip.duplicate();
+		copy.resetMinAndMax();
+		return (ByteProcessor)copy.convertToByte(true);
+	}
+
+	/** Methods GCCFilters.autoThreshold runs on the full histogram of 16-bit images. */
+	private static boolean isFullRange(AutoThresholder.Method method) {
+		return method == AutoThresholder.Method.Li || method == AutoThresholder.Method.Otsu;
+	}
+
+	/** Mask of "Auto Threshold" with white objects, pixels that are not black. */
+	private static byte[] fijiMask(ImageProcessor ip, AutoThresholder.Method method, boolean ignoreBlack, boolean ignoreWhite) {
+		ImagePlus imp = new ImagePlus("check", ip.duplicate());
+		IJ.run(imp, AUTO_THRESHOLD, "method="+method+(ignoreBlack ? " ignore_black" : "")+(ignoreWhite ? " ignore_white" : "")+" white");
+		ImageProcessor res = imp.getProcessor();
+		byte[] mask = new byte[res.getPixelCount()];
+		for (int i = 0; i < mask.length; i++) {
+			if (res.get(i) != 0) mask[i] = (byte)255;
+		}
+		return mask;
+	}
+
+	/**
+	 * Mask of the pixels above the AutoThresholder level of the used range of the 16-bit histogram, padded to 256 bins,
+	 * which is the level of the full histogram. Null if more than 256 levels are used.
+	 */
+	private static byte[] fullRangeMask(ShortProcessor sp, AutoThresholder.Method method, boolean ignoreBlack, boolean ignoreWhite) {
+		int[] histogram = sp.getHistogram();
+		if (ignoreBlack) histogram[0] = 0;
+		if (ignoreWhite) histogram[histogram.length-1] = 0;
+		int min = 0, max = histogram.length-1;
+		while (min < max && histogram[min] == 0) min++;
+		while (max > min && histogram[max] == 0) max--;
+		if (max-min >= 256) return null;
+		int[] bins = Arrays.copyOfRange(histogram, min, min+256); // zeros past the end of the histogram
+		int level = min+new AutoThresholder().getThreshold(method, bins);
+		byte[] mask = new byte[sp.getPixelCount()];
+		for (int i = 0; i < mask.length; i++) {
+			if (sp.get(i) > level) mask[i] = (byte)255;
+		}
+		return mask;
+	}
+
+	/** Mask of the pixels above the AutoThresholder level of the ImageJ histogram. */
+	private static byte[] coreMask(ByteProcessor bp, AutoThresholder.Method method, boolean ignoreBlack, boolean ignoreWhite) {
+		int[] histogram = bp.getHistogram();
+		if (ignoreBlack) histogram[0] = 0;
+		if (ignoreWhite) histogram[255] = 0;
+		int level = new AutoThresholder().getThreshold(method, histogram);
+		byte[] pixels = (byte[])bp.getPixels();
+		byte[] mask = new byte[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			if ((pixels[i] & 0xff) > level) mask[i] = (byte)255;
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,134 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Binary mask with one bit per pixel, 64 pixels in each long word.
+ * Each row starts on a new word and the bits after the end of a row are always 0,
+ * so that combining, counting and finding runs of object pixels work on whole words.
+ * Thresholds give masks of this type, they become 8-bit images only to be displayed
+ * or passed to ImageJ commands.
+ */
+class GCCBitMask {
+	private final int width, height, wordsPerRow;
+	private final long[] words;
+
+	GCCBitMask(int width, int height) {
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width+63) >>> 6;
+		words = new long[wordsPerRow*height];
+	}
+
+	/** Mask of the non zero pixels of ip. */
+	public static GCCBitMask fromMask(ImageProcessor ip) {
+		GCCBitMask mask = new GCCBitMask(ip.getWidth(), ip.getHeight());
+		if (ip instanceof ByteProcessor) {
+			GCCKernels.threshold((byte[])ip.getPixels(), 0, mask.width, mask.words);
+		} else {
+			for (int y = 0, i = 0; y < mask.height; y++) {
+				for (int x = 0; x < mask.width; x++, i++) {
+					if (ip.getf(i) != 0) mask.set(x, y);
+				}
+			}
+		}
+		return mask;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Words of the mask, row y starting at word y*getWordsPerRow(), pixel x being bit x%64 of its word. */
+	public long[] getWords() {
+		return words;
+	}
+
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	public boolean get(int x, int y) {
+		return (words[y*wordsPerRow+(x >>> 6)] >>> x & 1L) != 0;
+	}
+
+	public void set(int x, int y) {
+		words[y*wordsPerRow+(x >>> 6)] |= 1L << x;
+	}
+
+	/** this = this AND other */
+	public void and(GCCBitMask other) {
+		long[] b = other.words;
+		for (int i = 0; i < words.length; i++) {
+			words[i] &= b[i];
+		}
+	}
+
+	/** this = this OR other */
+	public void or(GCCBitMask other) {
+		long[] b = other.words;
+		for (int i = 0; i < words.length; i++) {
+			words[i] |= b[i];
+		}
+	}
+
+	/** this = NOT this, bits after the end of each row stay 0. */
+	public void not() {
+		long last = (width & 63) == 0 ? -1L : (1L << width)-1;
+		for (int y = 0; y < height; y++) {
+			int end = (y+1)*wordsPerRow;
+			for (int i = y*wordsPerRow; i < end; i++) {
+				words[i] = ~words[i];
+			}
+			words[end-1] &= last;
+		}
+	}
+
+	/** Number of object pixels. */
+	public long count() {
+		long n = 0;
+		for (long w : words) {
+			n += Long.bitCount(w);
+		}
+		return n;
+	}
+
+	/** First object pixel of row y at or after x, width if there is none. */
+	public int nextSet(int y, int x) {
+		if (x >= width) return width;
+		int base = y*wordsPerRow, w = x >>> 6;
+		long word = words[base+w] & (-1L << x);
+		while (word == 0) {
+			if (++w == wordsPerRow) return width;
+			word = words[base+w];
+		}
+		return (w << 6)+Long.numberOfTrailingZeros(word);
+	}
+
+	/** First background pixel of row y at or after x, width if there is none. */
+	public int nextClear(int y, int x) {
+		if (x >= width) return width;
+		int base = y*wordsPerRow, w = x >>> 6;
+		long word = ~words[base+w] & (-1L << x);
+		while (word == 0) {
+			if (++w == wordsPerRow) return width;
+			word = ~words[base+w];
+		}
+		return Math.min((w << 6)+Long.numberOfTrailingZeros(word), width);
+	}
+
+	/** 8-bit image with 255 for object pixels, its pixels taken from GCCBufferPool. */
+	public ByteProcessor toByteProcessor() {
+		byte[] pixels = GCCBufferPool.getBytes(width*height, false);
+		for (int y = 0, i = 0; y < height; y++) {
+			int base = y*wordsPerRow;
+			for (int x = 0; x < width; x++, i++) {
+				pixels[i] = (byte)-(int)(words[base+(x >>> 6)] >>> x & 1L);
+			}
+		}
+		return new ByteProcessor(width, height, pixels);
+	}
+}
@@ -0,0 +1,150 @@
+import ij.IJ;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pixel and label arrays of the pipeline given back once used, so that the next preview
+ * of the same image takes them again instead of allocating new ones.
+ * Arrays are kept by type and length, those of the least recently used lengths are dropped
+ * beyond the budget of the "GCC.bufferPoolMB" preference (an eighth of the memory available to ImageJ by default).
+ * The pool is emptied when the image is closed.
+ * An array must only be released by the code that took it, once nothing refers to it anymore.
+ */
+class GCCBufferPool {
+	private static final int MAX_PER_LENGTH = 4;
+	private static final LinkedHashMap<String, ArrayDeque<Object>> arrays = new LinkedHashMap<String, ArrayDeque<Object>>(16, 0.75f, true);
+	private static final Set<Object> pooled = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()); // arrays released twice are kept once
+	private static long bytes = 0;
+
+	private GCCBufferPool() {}
+
+	/** Array of n bytes, cleared if asked, otherwise with the values of its last use. */
+	public static byte[] getBytes(int n, boolean clear) {
+		byte[] arr = (byte[])take("byte", n);
+		if (arr == null) return new byte[n];
+		if (clear) Arrays.fill(arr, (byte)0);
+		return arr;
+	}
+
+	public static short[] getShorts(int n, boolean clear) {
+		short[] arr = (short[])take("short", n);
+		if (arr == null) return new short[n];
+		if (clear) Arrays.fill(arr, (short)0);
+		return arr;
+	}
+
+	public static int[] getInts(int n, boolean clear) {
+		int[] arr = (int[])take("int", n);
+		if (arr == null) return new int[n];
+		if (clear) Arrays.fill(arr, 0);
+		return arr;
+	}
+
+	public static float[] getFloats(int n, boolean clear) {
+		float[] arr = (float[])take("float", n);
+		if (arr == null) return new float[n];
+		if (clear) Arrays.fill(arr, 0f);
+		return arr;
+	}
+
+	/** New processor of the same type with a copy of the pixels of ip. */
+	public static ImageProcessor copy(ImageProcessor ip) {
+		return copy(ip, new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+	}
+
+	/** New processor of the same type with a copy of the pixels of ip inside r, like ImageProcessor.crop(). */
+	public static ImageProcessor copy(ImageProcessor ip, Rectangle r) {
+		int n = r.width*r.height;
+		if (ip instanceof ColorProcessor) {
+			ip.setRoi(r);
+			ImageProcessor res = ip.crop();
+			ip.resetRoi();
+			return res;
+		}
+		Object src = ip.getPixels();
+		Object dst = ip instanceof ByteProcessor ? getBytes(n, false) : ip instanceof ShortProcessor ? getShorts(n, false) : getFloats(n, false);
+		for (int y = 0; y < r.height; y++) {
+			System.arraycopy(src, (y+r.y)*ip.getWidth()+r.x, dst, y*r.width, r.width);
+		}
+		if (ip instanceof ByteProcessor) return new ByteProcessor(r.width, r.height, (byte[])dst, ip.getColorModel());
+		if (ip instanceof ShortProcessor) return new ShortProcessor(r.width, r.height, (short[])dst, ip.getColorModel());
+		return new FloatProcessor(r.width, r.height, (float[])dst, ip.getColorModel());
+	}
+
+	/** New processor on the same pixels as ip, without copying them, with its own roi and display range. */
+	public static ImageProcessor view(ImageProcessor ip) {
+		int w = ip.getWidth(), h = ip.getHeight();
+		if (ip instanceof ByteProcessor) return new ByteProcessor(w, h, (byte[])ip.getPixels(), ip.getColorModel());
+		if (ip instanceof ShortProcessor) return new ShortProcessor(w, h, (short[])ip.getPixels(), ip.getColorModel());
+		if (ip instanceof FloatProcessor) return new FloatProcessor(w, h, (float[])ip.getPixels(), ip.getColorModel());
+		return new ColorProcessor(w, h, (int[])ip.getPixels());
+	}
+
+	/** Gives back the pixels of ip, null is ignored. */
+	public static void release(ImageProcessor ip) {
+		if (ip != null) release(ip.getPixels());
+	}
+
+	/** Gives back a byte, short, int or float array, other objects and null are ignored. */
+	public static synchronized void release(Object arr) {
+		String type = arr instanceof byte[] ? "byte" : arr instanceof short[] ? "short" : arr instanceof int[] ? "int" : arr instanceof float[] ? "float" : null;
+		if (type == null || pooled.contains(arr)) return;
+		int n = Array.getLength(arr);
+		long size = sizeOf(arr);
+		long budget = (long)ij.Prefs.get("GCC.bufferPoolMB", IJ.maxMemory()/8 >> 20) << 20;
+		String key = type+n;
+		ArrayDeque<Object> queue = arrays.get(key);
+		if (queue == null) {
+			queue = new ArrayDeque<Object>();
+			arrays.put(key, queue);
+		}
+		if (queue.size() >= MAX_PER_LENGTH || size > budget) return;
+		queue.push(arr);
+		pooled.add(arr);
+		bytes += size;
+		// lengths not asked for recently, like those of previous viewports, go first
+		for (Iterator<Map.Entry<String, ArrayDeque<Object>>> it = arrays.entrySet().iterator(); bytes > budget && it.hasNext();) {
+			ArrayDeque<Object> q = it.next().getValue();
+			while (bytes > budget && !q.isEmpty()) {
+				Object old = q.removeLast();
+				pooled.remove(old);
+				bytes -= sizeOf(old);
+			}
+			if (q.isEmpty()) it.remove();
+		}
+	}
+
+	/** Drops all arrays, when the image is closed. */
+	public static synchronized void clear() {
+		arrays.clear();
+		pooled.clear();
+		bytes = 0;
+	}
+
+	private static synchronized Object take(String type, int n) {
+		ArrayDeque<Object> queue = arrays.get(type+n);
+		if (queue == null || queue.isEmpty()) return null;
+		Object arr = queue.pop();
+		pooled.remove(arr);
+		bytes -= sizeOf(arr);
+		return arr;
+	}
+
+	private static long sizeOf(Object arr) {
+		return (long)Array.getLength(arr)*(arr instanceof byte[] ? 1 : arr instanceof short[] ? 2 : 4);
+	}
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per cell measurement table, written row by row from the measurements of the counted cells.
+ * The csv flavour uses ';' separators like GeneralCellCount.csv, the binary flavour stores
+ * blocks of rows column by column (see Binary) so millions of cells stay small and quick to load.
+ * "Counted" holds the cells the row counts for in the results file: 0 for duplicates and for cells removed
+ * by the channel correction. Extra numeric columns, such as channel intensities, come after it.
+ */
+abstract class GCCCellTableWriter implements Closeable {
+	public static final String[] COLUMNS = {"Cell ID", "X(px)", "Y(px)", "Area(unit2)", "Area(px2)", "Circularity", "Duplicate", "Nuclei", "Counted", "Nuclei positions (x;y)"};
+	protected final String[] extraColumns;
+
+	protected GCCCellTableWriter(String[] extraColumns) {
+		this.extraColumns = extraColumns != null ? extraColumns : new String[0];
+	}
+
+	public static GCCCellTableWriter open(String path, boolean binary) throws IOException {
+		return open(path, binary, null);
+	}
+
+	public static GCCCellTableWriter open(String path, boolean binary, String[] extraColumns) throws IOException {
+		return binary ? new Binary(path, extraColumns) : new Csv(path, extraColumns);
+	}
+
+	/**
+	 * Adds a cell, x and y are in pixels, area is calibrated,
+	 * counted is the number of cells the row counts for, nucleusPos holds x and y (px) of each nucleus inside the cell and can be null,
+	 * extra holds the values of the extra columns and can be null if there are none.
+	 */
+	public abstract void writeRow(int id, double x, double y, double area, int areaPx, double circularity,
+			boolean duplicate, int nNuclei, int counted, int[] nucleusPos, double[] extra) throws IOException;
+
+	static class Csv extends GCCCellTableWriter {
+		private final Writer out;
+
+		Csv(String path, String[] extraColumns) throws IOException {
+			super(extraColumns);
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8), 1 << 16);
+			for (int c = 0; c < COLUMNS.length-1; c++) {
+				if (c > 0) out.write(';');
+				out.write(COLUMNS[c]);
+			}
+			for (int c = 0; c < this.extraColumns.length; c++) {
+				out.write(';');
+				out.write(this.extraColumns[c]);
+			}
+			out.write(';');
+			out.write(COLUMNS[COLUMNS.length-1]);
+			out.write('\n');
+		}
+
+		public void writeRow(int id, double x, double y, double area, int areaPx, double circularity,
+				boolean duplicate, int nNuclei, int counted, int[] nucleusPos, double[] extra) throws IOException {
+			out.write(Integer.toString(id));
+			out.write(';');
+			out.write(Double.toString(x));
+			out.write(';');
+			out.write(Double.toString(y));
+			out.write(';');
+			out.write(Double.toString(area));
+			out.write(';');
+			out.write(Integer.toString(areaPx));
+			out.write(';');
+			out.write(Double.toString(circularity));
+			out.write(';');
+			out.write(duplicate ? '1' : '0');
+			out.write(';');
+			out.write(Integer.toString(nNuclei));
+			out.write(';');
+			out.write(Integer.toString(counted));
+			for (int c = 0; c < extraColumns.length; c++) {
+				out.write(';');
+				out.write(Double.toString(extra[c]));
+			}
+			if (nucleusPos != null) {
+				for (int k = 0; k < nucleusPos.length; k++) {
+					out.write(';');
+					out.write(Integer.toString(nucleusPos[k]));
+				}
+			}
+			out.write('\n');
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Binary columnar table, big endian:
+	 * "GCCT", int version, int column count, then name (UTF) and type (byte) of each column,
+	 * then blocks of rows: int row count, each column for those rows, int count and values of the nuclei positions.
+	 * A block with 0 rows ends the file.
+	 * Types: 'I' int, 'D' double, 'B' byte. The extra columns are 'D' columns after "Counted".
+	 */
+	static class Binary extends GCCCellTableWriter {
+		public static final int VERSION = 1;
+		public static final int BLOCK_SIZE = 8192;
+		private static final byte[] TYPES = {'I', 'D', 'D', 'D', 'I', 'D', 'B', 'I', 'I'};
+		private final DataOutputStream out;
+		private int n = 0;
+		private final int[] ids = new int[BLOCK_SIZE], areasPx = new int[BLOCK_SIZE], nuclei = new int[BLOCK_SIZE], counts = new int[BLOCK_SIZE];
+		private final double[] xs = new double[BLOCK_SIZE], ys = new double[BLOCK_SIZE], areas = new double[BLOCK_SIZE], circs = new double[BLOCK_SIZE];
+		private final byte[] dups = new byte[BLOCK_SIZE];
+		private final double[][] extras;
+		private int[] positions = new int[2*BLOCK_SIZE];
+		private int nPositions = 0;
+
+		Binary(String path, String[] extraColumns) throws IOException {
+			super(extraColumns);
+			extras = new double[this.extraColumns.length][BLOCK_SIZE];
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+			out.writeBytes("GCCT");
+			out.writeInt(VERSION);
+			out.writeInt(TYPES.length+this.extraColumns.length);
+			for (int c = 0; c < TYPES.length; c++) {
+				out.writeUTF(COLUMNS[c]);
+				out.writeByte(TYPES[c]);
+			}
+			for (int c = 0; c < this.extraColumns.length; c++) {
+				out.writeUTF(this.extraColumns[c]);
+				out.writeByte('D');
+			}
+		}
+
+		public void writeRow(int id, double x, double y, double area, int areaPx, double circularity,
+				boolean duplicate, int nNuclei, int counted, int[] nucleusPos, double[] extra) throws IOException {
+			ids[n] = id;
+			xs[n] = x;
+			ys[n] = y;
+			areas[n] = area;
+			areasPx[n] = areaPx;
+			circs[n] = circularity;
+			dups[n] = (byte)(duplicate ? 1 : 0);
+			nuclei[n] = nNuclei;
+			counts[n] = counted;
+			for (int c = 0; c < extras.length; c++) {
+				extras[c][n] = extra[c];
+			}
+			if (nucleusPos != null) {
+				if (nPositions+nucleusPos.length > positions.length) {
+					int[] newPositions = new int[Math.max(2*positions.length, nPositions+nucleusPos.length)];
+					System.arraycopy(positions, 0, newPositions, 0, nPositions);
+					positions = newPositions;
+				}
+				System.arraycopy(nucleusPos, 0, positions, nPositions, nucleusPos.length);
+				nPositions += nucleusPos.length;
+			}
+			if (++n == BLOCK_SIZE) {
+				flushBlock();
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			if (n == 0) return;
+			out.writeInt(n);
+			for (int i = 0; i < n; i++) out.writeInt(ids[i]);
+			for (int i = 0; i < n; i++) out.writeDouble(xs[i]);
+			for (int i = 0; i < n; i++) out.writeDouble(ys[i]);
+			for (int i = 0; i < n; i++) out.writeDouble(areas[i]);
+			for (int i = 0; i < n; i++) out.writeInt(areasPx[i]);
+			for (int i = 0; i < n; i++) out.writeDouble(circs[i]);
+			out.write(dups, 0, n);
+			for (int i = 0; i < n; i++) out.writeInt(nuclei[i]);
+			for (int i = 0; i < n; i++) out.writeInt(counts[i]);
+			for (int c = 0; c < extras.length; c++) {
+				for (int i = 0; i < n; i++) out.writeDouble(extras[c][i]);
+			}
+			out.writeInt(nPositions);
+			for (int i = 0; i < nPositions; i++) out.writeInt(positions[i]);
+			n = 0;
+			nPositions = 0;
+		}
+
+		public void close() throws IOException {
+			flushBlock();
+			out.writeInt(0);
+			out.close();
+		}
+	}
+}
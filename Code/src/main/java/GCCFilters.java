@@ -0,0 +1,240 @@
+import ij.measure.Calibration;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.RankFilters;
+import ij.process.AutoThresholder;
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Image operations of the pipeline called directly on ImageProcessors,
+ * instead of going through IJ.run command strings and the active window.
+ * Each method gives the same result as the ImageJ command noted in its comment.
+ * Per pixel loops of 8-bit, 16-bit and 32-bit images run in GCCKernels.
+ * New processors have their pixels taken from GCCBufferPool, callers give them back once used.
+ */
+class GCCFilters {
+	private GCCFilters() {}
+
+	/** "Invert" */
+	public static void invert(ImageProcessor ip) {
+		if (!(ip instanceof ByteProcessor)) {
+			ip.resetMinAndMax();
+		}
+		invert(ip, ip.getMin(), ip.getMax());
+	}
+
+	/** "Invert" of 16-bit and 32-bit images within the range min-max, like a part of a larger image inverted with the range of the whole image. */
+	public static void invert(ImageProcessor ip, double min, double max) {
+		if (ip instanceof ByteProcessor) {
+			GCCKernels.invert((byte[])ip.getPixels());
+		} else if (ip instanceof ShortProcessor) {
+			GCCKernels.invert((short[])ip.getPixels(), (int)min, (int)max);
+		} else if (ip instanceof FloatProcessor) {
+			GCCKernels.invert((float[])ip.getPixels(), (float)min, (float)max);
+		} else {
+			ip.invert();
+		}
+	}
+
+	/** "Gaussian Blur..." with "scaled" sigma, then "Subtract create": new processor holding ip minus its blurred copy. */
+	public static ImageProcessor highPass(ImageProcessor ip, double sigma, Calibration cal) {
+		ImageProcessor blurred = GCCBufferPool.copy(ip);
+		double accuracy = (ip instanceof ByteProcessor || ip instanceof ColorProcessor) ? 0.002 : 0.0002;
+		GaussianBlur gb = new GaussianBlur();
+		gb.showProgress(false);
+		gb.blurGaussian(blurred, sigma/cal.pixelWidth, sigma/cal.pixelHeight, accuracy);
+		ImageProcessor res = GCCBufferPool.copy(ip);
+		if (res instanceof ByteProcessor) {
+			GCCKernels.subtract((byte[])res.getPixels(), (byte[])blurred.getPixels());
+		} else if (res instanceof ShortProcessor) {
+			GCCKernels.subtract((short[])res.getPixels(), (short[])blurred.getPixels());
+		} else if (res instanceof FloatProcessor) {
+			GCCKernels.subtract((float[])res.getPixels(), (float[])blurred.getPixels());
+		} else {
+			res.copyBits(blurred, 0, 0, Blitter.SUBTRACT);
+		}
+		GCCBufferPool.release(blurred);
+		return res;
+	}
+
+	/** "Median..." */
+	public static void median(ImageProcessor ip, double radius) {
+		new RankFilters().rank(ip, radius, RankFilters.MEDIAN);
+	}
+
+	/** "8-bit" after resetting the display range, ip is returned unchanged if already 8-bit. */
+	public static ByteProcessor toByte(ImageProcessor ip) {
+		if (ip instanceof ByteProcessor) {
+			return (ByteProcessor)ip;
+		}
+		ip.resetMinAndMax();
+		return toByte(ip, ip.getMin(), ip.getMax());
+	}
+
+	/**
+	 * "8-bit" with the display range min-max, like a part of a larger image converted with the range of the whole image.
+	 * ip is returned unchanged if already 8-bit, RGB images ignore the range.
+	 */
+	public static ByteProcessor toByte(ImageProcessor ip, double min, double max) {
+		if (ip instanceof ByteProcessor) {
+			return (ByteProcessor)ip;
+		}
+		if (ip instanceof ShortProcessor) {
+			byte[] pixels = GCCBufferPool.getBytes(ip.getPixelCount(), false);
+			GCCKernels.toByte((short[])ip.getPixels(), (int)min, (int)max, pixels);
+			return new ByteProcessor(ip.getWidth(), ip.getHeight(), pixels, ip.getColorModel());
+		}
+		if (ip instanceof FloatProcessor) {
+			byte[] pixels = GCCBufferPool.getBytes(ip.getPixelCount(), false);
+			GCCKernels.toByte((float[])ip.getPixels(), min, max, pixels);
+			return new ByteProcessor(ip.getWidth(), ip.getHeight(), pixels, ip.getColorModel());
+		}
+		if (!(ip instanceof ColorProcessor)) { // RGB pixels would be changed, they are converted by their luminance
+			ip.setMinAndMax(min, max);
+		}
+		return (ByteProcessor)ip.convertToByte(true);
+	}
+
+	/**
+	 * "Auto Threshold" with "white" objects: mask of the pixels above the threshold.
+	 * With Li and Otsu, 16-bit images are thresholded like the plugin does, on their full histogram bracketed to the used range.
+	 * With the other methods, which the plugin runs on 8-bit conversions only, and for 32-bit images, the 8-bit conversion is thresholded.
+	 */
+	public static GCCBitMask autoThreshold(ImageProcessor ip, String method, boolean ignoreBlack, boolean ignoreWhite) {
+		if (!isThresholdedDirectly(ip, method)) {
+			ByteProcessor bp = toByte(GCCBufferPool.view(ip)); // the display range of ip is kept
+			GCCBitMask mask = autoThreshold(bp, method, ignoreBlack, ignoreWhite);
+			GCCBufferPool.release(bp);
+			return mask;
+		}
+		return applyThreshold(ip, getThreshold(ip, method, ignoreBlack, ignoreWhite));
+	}
+
+	/** Whether autoThreshold thresholds ip itself rather than its 8-bit conversion. */
+	public static boolean isThresholdedDirectly(ImageProcessor ip, String method) {
+		return ip instanceof ByteProcessor || (ip instanceof ShortProcessor && (method.equals("Li") || method.equals("Otsu")));
+	}
+
+	/** Level of autoThreshold for an image it thresholds directly, pixels strictly above are objects. */
+	public static int getThreshold(ImageProcessor ip, String method, boolean ignoreBlack, boolean ignoreWhite) {
+		if (ip instanceof ShortProcessor) {
+			return getFullRangeThreshold(GCCKernels.histogram((short[])ip.getPixels()), method, ignoreBlack, ignoreWhite);
+		}
+		int[] histogram = GCCKernels.histogram((byte[])ip.getPixels());
+		if (ignoreBlack) histogram[0] = 0;
+		if (ignoreWhite) histogram[255] = 0;
+		return new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(method), histogram);
+	}
+
+	/**
+	 * Li or Otsu level of a 65536 bin histogram, as "Auto Threshold" computes it for 16-bit images:
+	 * ignore_black and ignore_white empty the first and last bins, then the histogram is bracketed to its non empty bins.
+	 * AutoThresholder only takes 256 bin histograms, both methods are ported for any length.
+	 */
+	private static int getFullRangeThreshold(int[] histogram, String method, boolean ignoreBlack, boolean ignoreWhite) {
+		if (ignoreBlack) histogram[0] = 0;
+		if (ignoreWhite) histogram[histogram.length-1] = 0;
+		int min = 0, max = histogram.length-1;
+		while (min < max && histogram[min] == 0) min++;
+		while (max > min && histogram[max] == 0) max--;
+		if (histogram[min] == 0) return histogram.length-1; // no pixel left, nothing is above
+		int[] data = new int[max-min+1];
+		System.arraycopy(histogram, min, data, 0, data.length);
+		return min+(method.equals("Li") ? li(data) : otsu(data));
+	}
+
+	/** Li's minimum cross entropy, iterative version, as in AutoThresholder and "Auto Threshold". */
+	private static int li(int[] data) {
+		double tolerance = 0.5;
+		double numPixels = 0;
+		for (int ih = 0; ih < data.length; ih++) {
+			numPixels += data[ih];
+		}
+		double mean = 0; // mean gray level
+		for (int ih = 1; ih < data.length; ih++) {
+			mean += (double)ih*data[ih];
+		}
+		mean /= numPixels;
+		double newThresh = mean, oldThresh;
+		int threshold;
+		do {
+			oldThresh = newThresh;
+			threshold = (int)(oldThresh+0.5);
+			// means of the background and object pixels
+			double sumBack = 0, numBack = 0;
+			for (int ih = 0; ih <= threshold; ih++) {
+				sumBack += (double)ih*data[ih];
+				numBack += data[ih];
+			}
+			double meanBack = numBack == 0 ? 0.0 : sumBack/numBack;
+			double sumObj = 0, numObj = 0;
+			for (int ih = threshold+1; ih < data.length; ih++) {
+				sumObj += (double)ih*data[ih];
+				numObj += data[ih];
+			}
+			double meanObj = numObj == 0 ? 0.0 : sumObj/numObj;
+			double temp = (meanBack-meanObj)/(Math.log(meanBack)-Math.log(meanObj));
+			if (temp < -2.220446049250313E-16) {
+				newThresh = (int)(temp-0.5);
+			} else {
+				newThresh = (int)(temp+0.5);
+			}
+		} while (Math.abs(newThresh-oldThresh) > tolerance);
+		return threshold;
+	}
+
+	/** Otsu's maximum between class variance, as in AutoThresholder and "Auto Threshold". */
+	private static int otsu(int[] data) {
+		int length = data.length;
+		double sum = 0, n = 0;
+		for (int k = 0; k < length; k++) {
+			sum += (double)k*data[k];
+			n += data[k];
+		}
+		double sumK = 0, n1 = data[0], bcvMax = 0;
+		int kStar = 0;
+		for (int k = 1; k < length-1; k++) {
+			sumK += (double)k*data[k];
+			n1 += data[k];
+			double denom = n1*(n-n1);
+			double bcv = 0;
+			if (denom != 0) {
+				double num = (n1/n)*sum-sumK;
+				bcv = num*num/denom;
+			}
+			if (bcv >= bcvMax) {
+				bcvMax = bcv;
+				kStar = k;
+			}
+		}
+		return kStar;
+	}
+
+	/** Mask of the pixels of ip strictly above level. */
+	public static GCCBitMask applyThreshold(ImageProcessor ip, double level) {
+		int width = ip.getWidth(), height = ip.getHeight();
+		GCCBitMask mask = new GCCBitMask(width, height);
+		// integer pixels are above level if they are above its floor
+		int intLevel = (int)Math.max(Math.min(Math.floor(level), Integer.MAX_VALUE), Integer.MIN_VALUE);
+		if (ip instanceof ByteProcessor) {
+			GCCKernels.threshold((byte[])ip.getPixels(), intLevel, width, mask.getWords());
+		} else if (ip instanceof ShortProcessor) {
+			GCCKernels.threshold((short[])ip.getPixels(), intLevel, width, mask.getWords());
+		} else if (ip instanceof FloatProcessor) {
+			GCCKernels.threshold((float[])ip.getPixels(), (float)level, width, mask.getWords());
+		} else {
+			for (int y = 0, i = 0; y < height; y++) {
+				for (int x = 0; x < width; x++, i++) {
+					if (ip.getf(i) > level) {
+						mask.set(x, y);
+					}
+				}
+			}
+		}
+		return mask;
+	}
+}
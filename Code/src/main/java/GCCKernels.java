@@ -0,0 +1,150 @@
+/**
+ * Per pixel loops of the pipeline on primitive arrays.
+ * Each loop is a plain counted loop without calls nor branches depending on other pixels,
+ * the shape the JIT compiler turns into SIMD instructions (SSE/AVX) on its own.
+ * Unsigned values of byte and short pixels are read with a mask.
+ */
+class GCCKernels {
+	private GCCKernels() {}
+
+	public static void invert(byte[] pixels) {
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (byte)(255-(pixels[i] & 0xff));
+		}
+	}
+
+	/** v = min+max-v, ImageJ invert of 16-bit images after resetting the display range. */
+	public static void invert(short[] pixels, int min, int max) {
+		int sum = min+max;
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short)(sum-(pixels[i] & 0xffff));
+		}
+	}
+
+	/** v = max-(v-min) in float arithmetic, like ImageJ invert of 32-bit images. */
+	public static void invert(float[] pixels, float min, float max) {
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = max-(pixels[i]-min);
+		}
+	}
+
+	/** a = a-b, clamped to 0 like Blitter.SUBTRACT for integer images. */
+	public static void subtract(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = (byte)Math.max((a[i] & 0xff)-(b[i] & 0xff), 0);
+		}
+	}
+
+	public static void subtract(short[] a, short[] b) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = (short)Math.max((a[i] & 0xffff)-(b[i] & 0xffff), 0);
+		}
+	}
+
+	public static void subtract(float[] a, float[] b) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] = a[i]-b[i];
+		}
+	}
+
+	/**
+	 * Bits set where pixels are strictly above level, in words laid out like GCCBitMask for rows of width pixels.
+	 * The 64 comparisons of a word are gathered in a local variable before it is stored.
+	 */
+	public static void threshold(byte[] pixels, int level, int width, long[] words) {
+		for (int i0 = 0, k = 0; i0 < pixels.length; i0 += width) {
+			for (int x0 = 0; x0 < width; x0 += 64, k++) {
+				int n = Math.min(64, width-x0);
+				long bits = 0;
+				for (int b = 0, i = i0+x0; b < n; b++, i++) {
+					bits |= (pixels[i] & 0xff) > level ? 1L << b : 0L;
+				}
+				words[k] = bits;
+			}
+		}
+	}
+
+	public static void threshold(short[] pixels, int level, int width, long[] words) {
+		for (int i0 = 0, k = 0; i0 < pixels.length; i0 += width) {
+			for (int x0 = 0; x0 < width; x0 += 64, k++) {
+				int n = Math.min(64, width-x0);
+				long bits = 0;
+				for (int b = 0, i = i0+x0; b < n; b++, i++) {
+					bits |= (pixels[i] & 0xffff) > level ? 1L << b : 0L;
+				}
+				words[k] = bits;
+			}
+		}
+	}
+
+	public static void threshold(float[] pixels, float level, int width, long[] words) {
+		for (int i0 = 0, k = 0; i0 < pixels.length; i0 += width) {
+			for (int x0 = 0; x0 < width; x0 += 64, k++) {
+				int n = Math.min(64, width-x0);
+				long bits = 0;
+				for (int b = 0, i = i0+x0; b < n; b++, i++) {
+					bits |= pixels[i] > level ? 1L << b : 0L;
+				}
+				words[k] = bits;
+			}
+		}
+	}
+
+	/** 8-bit scaling of ImageJ "8-bit" for 16-bit pixels with the display range min-max. */
+	public static void toByte(short[] pixels, int min, int max, byte[] res) {
+		double scale = 256.0/(max-min+1);
+		for (int i = 0; i < pixels.length; i++) {
+			int v = (int)(Math.max((pixels[i] & 0xffff)-min, 0)*scale+0.5);
+			res[i] = (byte)Math.min(v, 255);
+		}
+	}
+
+	/** Same for 32-bit pixels, in double arithmetic like FloatProcessor. */
+	public static void toByte(float[] pixels, double min, double max, byte[] res) {
+		double scale = 255.0/(max-min);
+		for (int i = 0; i < pixels.length; i++) {
+			double v = pixels[i]-min;
+			int b = (int)((v < 0 ? 0 : v)*scale+0.5);
+			res[i] = (byte)Math.min(b, 255);
+		}
+	}
+
+	/**
+	 * 256 bin histogram. Four partial histograms are filled in turn so that runs of equal pixels,
+	 * common in masks and backgrounds, do not wait on the same counter.
+	 */
+	public static int[] histogram(byte[] pixels) {
+		int[] h0 = new int[256], h1 = new int[256], h2 = new int[256], h3 = new int[256];
+		int n = pixels.length, i = 0;
+		for (; i+3 < n; i += 4) {
+			h0[pixels[i] & 0xff]++;
+			h1[pixels[i+1] & 0xff]++;
+			h2[pixels[i+2] & 0xff]++;
+			h3[pixels[i+3] & 0xff]++;
+		}
+		for (; i < n; i++) {
+			h0[pixels[i] & 0xff]++;
+		}
+		for (int k = 0; k < 256; k++) {
+			h0[k] += h1[k]+h2[k]+h3[k];
+		}
+		return h0;
+	}
+
+	/** 65536 bin histogram of 16-bit pixels. */
+	public static int[] histogram(short[] pixels) {
+		int[] h0 = new int[65536], h1 = new int[65536];
+		int n = pixels.length, i = 0;
+		for (; i+1 < n; i += 2) {
+			h0[pixels[i] & 0xffff]++;
+			h1[pixels[i+1] & 0xffff]++;
+		}
+		if (i < n) {
+			h0[pixels[i] & 0xffff]++;
+		}
+		for (int k = 0; k < 65536; k++) {
+			h0[k] += h1[k];
+		}
+		return h0;
+	}
+}
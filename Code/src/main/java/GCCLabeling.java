@@ -0,0 +1,496 @@
+import ij.Prefs;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connected component labeling of a binary mask (8-connected objects).
+ * The image is cut in horizontal stripes labeled in parallel with a union-find,
+ * then the stripes are merged along their borders. Background is skipped a run at a time.
+ * Gives a label image and per object area, bounding box and centroid.
+ * ImageJ Rois are only traced when asked for, or when circularity is needed.
+ */
+class GCCLabeling {
+	private static final int MIN_STRIPE_HEIGHT = 32;
+
+	private final int width, height;
+	private final int[] labels; // 0 = background, 1..count = objects in raster order of their first pixel
+	private int count;
+	// per object values, object i has label i+1 in the label image
+	private int[] area, xMin, yMin, xMax, yMax;
+	private double[] xSum, ySum;
+	private Roi[] rois;
+
+	private GCCLabeling(int width, int height) {
+		this.width = width;
+		this.height = height;
+		labels = GCCBufferPool.getInts(width*height, true);
+	}
+
+	/** Labeling of the non zero pixels of mask. */
+	public static GCCLabeling label(ImageProcessor mask) {
+		return label(GCCBitMask.fromMask(mask));
+	}
+
+	public static GCCLabeling label(final GCCBitMask mask) {
+		final GCCLabeling lab = new GCCLabeling(mask.getWidth(), mask.getHeight());
+		final int width = lab.width, height = lab.height;
+		int nStripes = Math.max(1, Math.min(Prefs.getThreads(), height/MIN_STRIPE_HEIGHT));
+		final int[] parent = GCCBufferPool.getInts(width*height+1, false); // provisional labels of stripe s start after y0*width, set when created
+		final Stripe[] stripes = new Stripe[nStripes];
+		for (int s = 0; s < nStripes; s++) {
+			stripes[s] = new Stripe(height*s/nStripes, height*(s+1)/nStripes, width);
+		}
+
+		// first pass: provisional labels and measurements, each stripe on its own
+		Thread[] threads = ThreadUtil.createThreadArray(nStripes);
+		for (int t = 0; t < nStripes; t++) {
+			final Stripe stripe = stripes[t];
+			threads[t] = new Thread() {
+				public void run() {
+					stripe.label(mask, lab.labels, parent, width);
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+
+		// merge stripes along their first row, object pixels being those already labeled
+		for (int s = 1; s < nStripes; s++) {
+			int y = stripes[s].y0;
+			for (int x = 0, i = y*width; x < width; x++, i++) {
+				if (lab.labels[i] == 0) continue;
+				for (int dx = -1; dx <= 1; dx++) {
+					if (x+dx >= 0 && x+dx < width && lab.labels[i-width+dx] != 0) {
+						union(parent, lab.labels[i], lab.labels[i-width+dx]);
+					}
+				}
+			}
+		}
+
+		// roots are the smallest label of their set, so numbering them in increasing order
+		// gives final labels in raster order of the first pixel of each object
+		int n = 0;
+		for (int s = 0; s < nStripes; s++) {
+			for (int l = stripes[s].offset+1; l <= stripes[s].offset+stripes[s].nLabels; l++) {
+				int p = parent[l];
+				parent[l] = p == l ? -(++n) : parent[p]; // parent[p] already holds -final label as p < l
+			}
+		}
+		lab.count = n;
+
+		for (int t = 0; t < nStripes; t++) {
+			final Stripe stripe = stripes[t];
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = stripe.y0*width; i < stripe.y1*width; i++) {
+						if (lab.labels[i] != 0) {
+							lab.labels[i] = -parent[lab.labels[i]];
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+
+		lab.allocate(n);
+		for (int s = 0; s < nStripes; s++) {
+			Stripe stripe = stripes[s];
+			for (int k = 0; k < stripe.nLabels; k++) {
+				int i = -parent[stripe.offset+1+k]-1;
+				if (lab.area[i] == 0) {
+					lab.xMin[i] = stripe.xMin[k];
+					lab.yMin[i] = stripe.yMin[k];
+					lab.xMax[i] = stripe.xMax[k];
+					lab.yMax[i] = stripe.yMax[k];
+				} else {
+					lab.xMin[i] = Math.min(lab.xMin[i], stripe.xMin[k]);
+					lab.yMin[i] = Math.min(lab.yMin[i], stripe.yMin[k]);
+					lab.xMax[i] = Math.max(lab.xMax[i], stripe.xMax[k]);
+					lab.yMax[i] = Math.max(lab.yMax[i], stripe.yMax[k]);
+				}
+				lab.area[i] += stripe.area[k];
+				lab.xSum[i] += stripe.xSum[k];
+				lab.ySum[i] += stripe.ySum[k];
+			}
+		}
+		GCCBufferPool.release(parent);
+		return lab;
+	}
+
+	private static int find(int[] parent, int l) {
+		while (parent[l] != l) {
+			l = parent[l];
+		}
+		return l;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a < b) {
+			parent[b] = a;
+		} else if (b < a) {
+			parent[a] = b;
+		}
+	}
+
+	private void allocate(int n) {
+		area = new int[n];
+		xMin = new int[n];
+		yMin = new int[n];
+		xMax = new int[n];
+		yMax = new int[n];
+		xSum = new double[n];
+		ySum = new double[n];
+		rois = null;
+	}
+
+	/**
+	 * Removes objects whose calibrated area or circularity is out of range and renumbers the others.
+	 * Circularity uses the perimeter of the traced outline like Analyze Particles,
+	 * so outlines are only traced (in parallel) when the circularity range excludes something.
+	 */
+	public void filter(double minArea, double maxArea, final double minCircularity, final double maxCircularity, double pixelArea) {
+		final boolean[] keep = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			double a = area[i]*pixelArea;
+			keep[i] = a >= minArea && a <= maxArea;
+		}
+		if (minCircularity > 0.0 || maxCircularity < 1.0) {
+			rois = new Roi[count];
+			final AtomicInteger next = new AtomicInteger();
+			Thread[] threads = ThreadUtil.createThreadArray(Prefs.getThreads());
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+							if (keep[i]) {
+								double circ = getCircularity(i);
+								keep[i] = circ >= minCircularity && circ <= maxCircularity;
+							}
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+		compact(keep);
+	}
+
+	/** Removes objects touching the given sides of the image, for images cut out of a larger one. */
+	public void removeBorderObjects(boolean left, boolean top, boolean right, boolean bottom) {
+		boolean[] keep = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			keep[i] = !(left && xMin[i] == 0 || top && yMin[i] == 0 || right && xMax[i] == width-1 || bottom && yMax[i] == height-1);
+		}
+		compact(keep);
+	}
+
+	/** Keeps objects i for which keep[i] is true, renumbered in the same order. */
+	private void compact(boolean[] keep) {
+		final int[] newLabel = new int[count+1];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (keep[i]) {
+				newLabel[i+1] = ++n;
+				area[n-1] = area[i];
+				xMin[n-1] = xMin[i];
+				yMin[n-1] = yMin[i];
+				xMax[n-1] = xMax[i];
+				yMax[n-1] = yMax[i];
+				xSum[n-1] = xSum[i];
+				ySum[n-1] = ySum[i];
+				if (rois != null) rois[n-1] = rois[i];
+			}
+		}
+		if (n == count) return;
+		count = n;
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), height/MIN_STRIPE_HEIGHT));
+		Thread[] threads = ThreadUtil.createThreadArray(nThreads);
+		for (int t = 0; t < nThreads; t++) {
+			final int start = height*t/nThreads*width, stop = height*(t+1)/nThreads*width;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = start; i < stop; i++) {
+						labels[i] = newLabel[labels[i]];
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+
+	/**
+	 * Intensity statistics of every object in each of the channels, same size as the label image,
+	 * in one pass over the label image shared between threads.
+	 */
+	public Intensities measure(final ImageProcessor[] channels) {
+		final int nChannels = channels.length;
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), height/MIN_STRIPE_HEIGHT));
+		final Intensities[] partial = new Intensities[nThreads];
+		Thread[] threads = ThreadUtil.createThreadArray(nThreads);
+		for (int t = 0; t < nThreads; t++) {
+			final int start = height*t/nThreads*width, stop = height*(t+1)/nThreads*width;
+			final Intensities in = partial[t] = new Intensities(nChannels, count);
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = start; i < stop; i++) {
+						int l = labels[i]-1;
+						if (l < 0) continue;
+						for (int c = 0; c < nChannels; c++) {
+							double v = channels[c].getf(i);
+							in.sum[c][l] += v;
+							in.sum2[c][l] += v*v;
+							if (v < in.min[c][l]) in.min[c][l] = v;
+							if (v > in.max[c][l]) in.max[c][l] = v;
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		Intensities res = partial[0];
+		for (int t = 1; t < nThreads; t++) {
+			for (int c = 0; c < nChannels; c++) {
+				for (int l = 0; l < count; l++) {
+					res.sum[c][l] += partial[t].sum[c][l];
+					res.sum2[c][l] += partial[t].sum2[c][l];
+					res.min[c][l] = Math.min(res.min[c][l], partial[t].min[c][l]);
+					res.max[c][l] = Math.max(res.max[c][l], partial[t].max[c][l]);
+				}
+			}
+		}
+		res.area = area;
+		return res;
+	}
+
+	/** Pixel value sums, squared sums, min and max per channel [c] and object [i]. */
+	static class Intensities {
+		private final double[][] sum, sum2, min, max;
+		private int[] area;
+
+		private Intensities(int nChannels, int count) {
+			sum = new double[nChannels][count];
+			sum2 = new double[nChannels][count];
+			min = new double[nChannels][count];
+			max = new double[nChannels][count];
+			for (int c = 0; c < nChannels; c++) {
+				Arrays.fill(min[c], Double.MAX_VALUE);
+				Arrays.fill(max[c], -Double.MAX_VALUE);
+			}
+		}
+
+		public int getChannelCount() {
+			return sum.length;
+		}
+
+		public double getMean(int c, int i) {
+			return sum[c][i]/area[i];
+		}
+
+		/** Sum of the pixel values ("RawIntDen"), multiply by the pixel area for "IntDen". */
+		public double getRawIntDen(int c, int i) {
+			return sum[c][i];
+		}
+
+		public double getMin(int c, int i) {
+			return min[c][i];
+		}
+
+		public double getMax(int c, int i) {
+			return max[c][i];
+		}
+
+		/** Standard deviation with n-1 like ImageJ. */
+		public double getStdDev(int c, int i) {
+			int n = area[i];
+			if (n < 2) return 0;
+			double var = (sum2[c][i]-sum[c][i]*sum[c][i]/n)/(n-1);
+			return var > 0 ? Math.sqrt(var) : 0;
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Label image, 0 for background and i+1 for object i. */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/** Gives the label image back to GCCBufferPool, only outlines already traced can be used afterwards. */
+	public void release() {
+		GCCBufferPool.release(labels);
+	}
+
+	/** Area in pixels. */
+	public int getArea(int i) {
+		return area[i];
+	}
+
+	/** Centroid in pixels, pixel centers being at +0.5 like ImageJ measurements. */
+	public double getXCentroid(int i) {
+		return xSum[i]/area[i]+0.5;
+	}
+
+	public double getYCentroid(int i) {
+		return ySum[i]/area[i]+0.5;
+	}
+
+	/** Bounding box, max values are inclusive. */
+	public int getXMin(int i) {
+		return xMin[i];
+	}
+
+	public int getYMin(int i) {
+		return yMin[i];
+	}
+
+	public int getXMax(int i) {
+		return xMax[i];
+	}
+
+	public int getYMax(int i) {
+		return yMax[i];
+	}
+
+	/** Perimeter of the traced outline in pixels. */
+	public double getPerimeter(int i) {
+		return getRoi(i).getLength();
+	}
+
+	public double getCircularity(int i) {
+		double p = getPerimeter(i);
+		if (p == 0) return 0;
+		double circ = 4.0*Math.PI*area[i]/(p*p);
+		return circ > 1.0 ? 1.0 : circ;
+	}
+
+	/** Outline of object i traced like Analyze Particles does, built on first request. */
+	public Roi getRoi(int i) {
+		if (rois == null) {
+			rois = new Roi[count];
+		}
+		if (rois[i] == null) {
+			int bx = xMin[i], by = yMin[i];
+			int bw = xMax[i]-bx+1, bh = yMax[i]-by+1;
+			ByteProcessor bp = new ByteProcessor(bw, bh);
+			byte[] bpPixels = (byte[])bp.getPixels();
+			int label = i+1;
+			int startX = -1;
+			for (int y = 0; y < bh; y++) {
+				for (int x = 0, j = (y+by)*width+bx; x < bw; x++, j++) {
+					if (labels[j] == label) {
+						bpPixels[y*bw+x] = (byte)255;
+						if (startX < 0) startX = x;
+					}
+				}
+			}
+			Wand wand = new Wand(bp);
+			wand.autoOutline(startX, 0, 255.0, 255.0, Wand.EIGHT_CONNECTED);
+			for (int k = 0; k < wand.npoints; k++) {
+				wand.xpoints[k] += bx;
+				wand.ypoints[k] += by;
+			}
+			rois[i] = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI);
+		}
+		return rois[i];
+	}
+
+	/** Provisional labels and measurements of one horizontal stripe. */
+	private static class Stripe {
+		final int y0, y1, offset;
+		int nLabels = 0;
+		int[] area, xMin, yMin, xMax, yMax;
+		double[] xSum, ySum;
+
+		Stripe(int y0, int y1, int width) {
+			this.y0 = y0;
+			this.y1 = y1;
+			offset = y0*width;
+			grow(256);
+		}
+
+		private void grow(int size) {
+			area = copy(area, size);
+			xMin = copy(xMin, size);
+			yMin = copy(yMin, size);
+			xMax = copy(xMax, size);
+			yMax = copy(yMax, size);
+			xSum = copy(xSum, size);
+			ySum = copy(ySum, size);
+		}
+
+		private static int[] copy(int[] arr, int size) {
+			int[] res = new int[size];
+			if (arr != null) System.arraycopy(arr, 0, res, 0, arr.length);
+			return res;
+		}
+
+		private static double[] copy(double[] arr, int size) {
+			double[] res = new double[size];
+			if (arr != null) System.arraycopy(arr, 0, res, 0, arr.length);
+			return res;
+		}
+
+		void label(GCCBitMask mask, int[] labels, int[] parent, int width) {
+			for (int y = y0; y < y1; y++) {
+				for (int start = mask.nextSet(y, 0); start < width; start = mask.nextSet(y, start)) {
+					int end = mask.nextClear(y, start);
+					for (int x = start, i = y*width+start; x < end; x++, i++) {
+						int l = 0;
+						if (x > 0 && labels[i-1] != 0) l = labels[i-1];
+						if (y > y0) {
+							for (int dx = -1; dx <= 1; dx++) {
+								if (x+dx < 0 || x+dx >= width) continue;
+								int n = labels[i-width+dx];
+								if (n != 0) {
+									if (l == 0) {
+										l = n;
+									} else if (n != l) {
+										union(parent, l, n);
+									}
+								}
+							}
+						}
+						if (l == 0) {
+							if (nLabels == area.length) grow(2*nLabels);
+							l = offset+(++nLabels);
+							parent[l] = l;
+						}
+						labels[i] = l;
+						int k = l-offset-1;
+						if (area[k] == 0) {
+							xMin[k] = x;
+							xMax[k] = x;
+							yMin[k] = y;
+						} else {
+							if (x < xMin[k]) xMin[k] = x;
+							if (x > xMax[k]) xMax[k] = x;
+						}
+						yMax[k] = y;
+						area[k]++;
+						xSum[k] += x;
+						ySum[k] += y;
+					}
+					start = end;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * Leases shared by instances of the plugin working on the same folder, on one or several computers,
+ * kept as files in GeneralCellCount/Leases. A lease file is created atomically by the instance claiming it
+ * and holds its name. Its modification time is renewed while the instance works, a lease not renewed
+ * for some time is considered abandoned by a crashed instance and can be claimed again.
+ * Images finished are marked by a ".done" file so that no other instance processes them.
+ * Each GCCLease is an owner of its own, even in the same Java VM, so the leases of one are not renewed
+ * or released by another. Short locks are renewed in background until unlocked, however long they are held.
+ */
+class GCCLease {
+	public static final String FOLDER_NAME = "Leases";
+	public static final long IMAGE_LEASE_TIME = 5*60*1000; // ms without renewal before an image lease is abandoned
+	public static final long LOCK_LEASE_TIME = 60*1000; // same for short locks, like the one of the results file
+	private static final String PROCESS = ManagementFactory.getRuntimeMXBean().getName(); // pid@host
+	private static final Timer LOCK_RENEWAL = new Timer("GCC lock renewal", true);
+	private final String worker = PROCESS+"_"+UUID.randomUUID(); // owner name written in the lease files
+	private final File folder;
+	private final Map<String, TimerTask> renewals = new HashMap<String, TimerTask>(); // of the locks held
+
+	/** Leases of the GeneralCellCount folder given. */
+	GCCLease(String folder) {
+		this.folder = new File(folder, FOLDER_NAME);
+		this.folder.mkdirs();
+	}
+
+	/** Claims the image name, false if it is done or leased by another instance. */
+	public boolean claim(String name) {
+		if (new File(folder, name+".done").exists()) return false;
+		return create(name, IMAGE_LEASE_TIME);
+	}
+
+	/** Renews the lease of name, false if it was lost to another instance meanwhile. */
+	public boolean renew(String name) {
+		File lease = new File(folder, name+".lock");
+		return isOwned(lease) && lease.setLastModified(System.currentTimeMillis());
+	}
+
+	/** Ends the lease of name, marking it done if asked. */
+	public void release(String name, boolean done) {
+		File lease = new File(folder, name+".lock");
+		if (done) {
+			try {
+				new File(folder, name+".done").createNewFile();
+			} catch (IOException ex) {
+				// the image can be processed again, its results are only replaced
+			}
+		}
+		if (isOwned(lease)) {
+			lease.delete();
+		}
+	}
+
+	/** Waits up to timeout ms for the short lock name, false if it is still held by another instance. */
+	public boolean lock(final String name, long timeout) {
+		long end = System.currentTimeMillis()+timeout;
+		while (!create(name, LOCK_LEASE_TIME)) {
+			if (System.currentTimeMillis() > end) return false;
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		TimerTask renewal = new TimerTask() {
+			public void run() {
+				if (!renew(name)) cancel();
+			}
+		};
+		synchronized (renewals) {
+			renewals.put(name, renewal);
+		}
+		LOCK_RENEWAL.schedule(renewal, LOCK_LEASE_TIME/4, LOCK_LEASE_TIME/4);
+		return true;
+	}
+
+	public void unlock(String name) {
+		TimerTask renewal;
+		synchronized (renewals) {
+			renewal = renewals.remove(name);
+		}
+		if (renewal != null) {
+			renewal.cancel();
+		}
+		release(name, false);
+	}
+
+	/** Creates the lease file of name, taking over an abandoned one. */
+	private boolean create(String name, long leaseTime) {
+		File lease = new File(folder, name+".lock");
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+				Files.write(Files.createFile(lease.toPath()), worker.getBytes(StandardCharsets.UTF_8));
+				return true;
+			} catch (FileAlreadyExistsException ex) {
+				long modified = lease.lastModified();
+				if (modified == 0 || System.currentTimeMillis()-modified < leaseTime) return false; // just released or still held
+				String owner = readOwner(lease);
+				// another instance may have taken over the lease meanwhile, so the file moved away is checked
+				// again: only the abandoned lease seen above is deleted, a fresh one is put back
+				File moved = new File(folder, name+".lock."+worker.replace('@', '_')+"."+System.nanoTime()+".stale");
+				try {
+					Files.move(lease.toPath(), moved.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException ex2) {
+					return false; // moved away by another instance first
+				}
+				if (owner == null || !owner.equals(readOwner(moved)) || System.currentTimeMillis()-moved.lastModified() < leaseTime) {
+					try {
+						Files.move(moved.toPath(), lease.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} catch (IOException ex2) {
+						moved.delete(); // its owner finds out it lost the lease when renewing it
+					}
+					return false;
+				}
+				moved.delete();
+			} catch (IOException ex) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private boolean isOwned(File lease) {
+		return worker.equals(readOwner(lease));
+	}
+
+	/** Name of the instance holding lease, null if it can't be read. */
+	private static String readOwner(File lease) {
+		try {
+			return new String(Files.readAllBytes(lease.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+}
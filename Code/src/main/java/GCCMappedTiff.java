@@ -0,0 +1,246 @@
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.RoiDecoder;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Virtual stack of an uncompressed TIFF file, read plane by plane through memory mapped regions of the file.
+ * Only the plane asked for is paged in, so opening takes the same time and heap whatever the size of the file.
+ * Planes are copied into the pixel arrays of the processors returned, nothing else of the file is kept in memory.
+ */
+class GCCMappedTiff extends VirtualStack {
+	private final File file;
+	private final FileInfo[] info; // one per plane, or a single one describing all planes
+	private final int nPlanes;
+	private final long planeBytes, gap;
+
+	private GCCMappedTiff(File file, FileInfo[] info, int nPlanes) {
+		super(info[0].width, info[0].height, new FileOpener(info[0]).createColorModel(info[0]), file.getParent()+File.separator);
+		this.file = file;
+		this.info = info;
+		this.nPlanes = nPlanes;
+		planeBytes = (long)info[0].width*info[0].height*info[0].getBytesPerPixel();
+		gap = info[0].longGap > 0 ? info[0].longGap : info[0].gapBetweenImages;
+		setBitDepth(getBitDepth(info[0].fileType));
+	}
+
+	/**
+	 * Image of the TIFF file at path as a mapped virtual stack, with what ImageJ restores when it opens the file:
+	 * calibration, hyperstack dimensions, composite mode with the channel LUTs and ranges, overlay, selection and Info property.
+	 * Null if the file is not a TIFF stack this reader can map (compressed, RGB, single plane...).
+	 */
+	public static ImagePlus open(String path) {
+		File file = new File(path);
+		FileInfo[] info;
+		try {
+			info = new TiffDecoder(file.getParent()+File.separator, file.getName()).getTiffInfo();
+		} catch (IOException ex) {
+			return null;
+		}
+		if (info == null || info.length == 0 || !isSupported(info)) return null;
+		int nPlanes = info.length == 1 ? info[0].nImages : info.length;
+		if (nPlanes < 2) return null; // a single plane is read as fast by ImageJ
+		FileInfo fi = info[0];
+		GCCMappedTiff stack = new GCCMappedTiff(file, info, nPlanes);
+		ImagePlus imp = new ImagePlus(file.getName(), stack);
+		fi.directory = file.getParent()+File.separator;
+		fi.fileName = file.getName();
+		imp.setFileInfo(fi);
+		Calibration cal = imp.getCalibration();
+		if (fi.pixelWidth > 0) {
+			cal.pixelWidth = fi.pixelWidth;
+			cal.pixelHeight = fi.pixelHeight;
+			cal.pixelDepth = fi.pixelDepth;
+			cal.setUnit(fi.unit);
+		}
+		Properties props = fi.description != null ? new FileOpener(fi).decodeDescriptionString(fi) : null;
+		if (props != null) {
+			int c = getInt(props, "channels"), z = getInt(props, "slices"), t = getInt(props, "frames");
+			if (c*z*t == nPlanes) {
+				imp.setDimensions(c, z, t);
+				if (props.getProperty("hyperstack", "false").equals("true") || c > 1) imp.setOpenAsHyperStack(true);
+			}
+			String min = props.getProperty("min"), max = props.getProperty("max");
+			if (min != null && max != null && imp.getBitDepth() != 8) {
+				try {
+					imp.setDisplayRange(Double.parseDouble(min), Double.parseDouble(max));
+				} catch (NumberFormatException ex) {
+					// keep the range of the first plane
+				}
+			}
+			if (imp.getNChannels() > 1) {
+				imp = toComposite(imp, fi, props.getProperty("mode", ""));
+			}
+		}
+		if (fi.info != null) {
+			imp.setProperty("Info", fi.info);
+		}
+		if (fi.overlay != null) {
+			Overlay overlay = new Overlay();
+			for (byte[] bytes : fi.overlay) {
+				Roi roi = RoiDecoder.openFromByteArray(bytes);
+				if (roi != null) overlay.add(roi);
+			}
+			imp.setOverlay(overlay);
+		}
+		if (fi.roi != null) {
+			Roi roi = RoiDecoder.openFromByteArray(fi.roi);
+			if (roi != null) imp.setRoi(roi);
+		}
+		return imp;
+	}
+
+	/** Composite image of the channels of imp, with the mode, LUTs and display ranges saved in the file. */
+	private static CompositeImage toComposite(ImagePlus imp, FileInfo fi, String mode) {
+		int compositeMode = mode.equals("composite") ? IJ.COMPOSITE : mode.equals("gray") || mode.equals("grayscale") ? IJ.GRAYSCALE : IJ.COLOR;
+		CompositeImage composite = new CompositeImage(imp, compositeMode);
+		int nChannels = composite.getNChannels();
+		if (fi.channelLuts != null && fi.channelLuts.length >= nChannels) {
+			LUT[] luts = new LUT[nChannels];
+			for (int c = 0; c < nChannels; c++) {
+				byte[] rgb = fi.channelLuts[c]; // 256 reds, greens then blues
+				if (rgb.length < 768) return composite;
+				byte[] reds = new byte[256], greens = new byte[256], blues = new byte[256];
+				System.arraycopy(rgb, 0, reds, 0, 256);
+				System.arraycopy(rgb, 256, greens, 0, 256);
+				System.arraycopy(rgb, 512, blues, 0, 256);
+				luts[c] = new LUT(reds, greens, blues);
+			}
+			composite.setLuts(luts);
+		}
+		if (fi.displayRanges != null && fi.displayRanges.length >= 2*nChannels) {
+			for (int c = 0; c < nChannels; c++) {
+				composite.setPositionWithoutUpdate(c+1, 1, 1);
+				composite.setDisplayRange(fi.displayRanges[2*c], fi.displayRanges[2*c+1]);
+			}
+			composite.setPositionWithoutUpdate(1, 1, 1);
+		}
+		return composite;
+	}
+
+	private static boolean isSupported(FileInfo[] info) {
+		for (FileInfo fi : info) {
+			if (fi.compression > FileInfo.COMPRESSION_NONE || fi.samplesPerPixel > 1 || fi.whiteIsZero) return false;
+			if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED && fi.fileType != FileInfo.GRAY32_FLOAT) return false;
+			if (fi.width != info[0].width || fi.height != info[0].height || fi.fileType != info[0].fileType) return false;
+		}
+		return true;
+	}
+
+	private static int getBitDepth(int fileType) {
+		return fileType == FileInfo.GRAY8 ? 8 : fileType == FileInfo.GRAY16_UNSIGNED ? 16 : 32;
+	}
+
+	private static int getInt(Properties props, String key) {
+		try {
+			return Math.max(1, Integer.parseInt(props.getProperty(key, "1")));
+		} catch (NumberFormatException ex) {
+			return 1;
+		}
+	}
+
+	public int getSize() {
+		return nPlanes;
+	}
+
+	public String getSliceLabel(int n) {
+		String[] labels = info[0].sliceLabels;
+		return labels != null && n <= labels.length ? labels[n-1] : null;
+	}
+
+	public String getFileName(int n) {
+		return file.getName();
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		if (n < 1 || n > nPlanes) throw new IllegalArgumentException("Argument out of range: "+n);
+		int w = getWidth(), h = getHeight();
+		ImageProcessor ip;
+		try {
+			ByteBuffer buffer = readPlane(n);
+			switch (getBitDepth()) {
+			case 8:
+				byte[] bytes = new byte[w*h];
+				buffer.get(bytes);
+				ip = new ByteProcessor(w, h, bytes, getColorModel());
+				break;
+			case 16:
+				short[] shorts = new short[w*h];
+				buffer.asShortBuffer().get(shorts);
+				ip = new ShortProcessor(w, h, shorts, getColorModel());
+				break;
+			default:
+				float[] floats = new float[w*h];
+				buffer.asFloatBuffer().get(floats);
+				ip = new FloatProcessor(w, h, floats, getColorModel());
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Cannot read plane "+n+" of "+file, ex);
+		}
+		return ip;
+	}
+
+	/** Bytes of plane n in the byte order of the file, mapped if the plane is stored in one piece. */
+	private ByteBuffer readPlane(int n) throws IOException {
+		FileInfo fi;
+		long offset;
+		if (info.length == 1) {
+			fi = info[0];
+			offset = fi.getOffset()+(n-1)*(planeBytes+gap);
+		} else {
+			fi = info[n-1];
+			offset = fi.getOffset();
+		}
+		ByteOrder order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			if (info.length == 1 || isContiguous(fi)) {
+				if (offset+planeBytes > channel.size()) throw new IOException("Truncated file");
+				return channel.map(FileChannel.MapMode.READ_ONLY, offset, planeBytes).order(order);
+			}
+			// strips scattered in the file, gathered in a heap buffer
+			ByteBuffer buffer = ByteBuffer.allocate((int)planeBytes);
+			for (int s = 0; s < fi.stripOffsets.length && buffer.hasRemaining(); s++) {
+				int length = Math.min(fi.stripLengths[s], buffer.remaining());
+				buffer.limit(buffer.position()+length);
+				long pos = fi.stripOffsets[s] & 0xffffffffL;
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, pos);
+					if (read < 0) throw new IOException("Truncated file");
+					pos += read;
+				}
+				buffer.limit(buffer.capacity());
+			}
+			buffer.flip();
+			return buffer.order(order);
+		}
+	}
+
+	private static boolean isContiguous(FileInfo fi) {
+		if (fi.stripOffsets == null || fi.stripOffsets.length < 2) return true;
+		for (int s = 1; s < fi.stripOffsets.length; s++) {
+			if ((fi.stripOffsets[s] & 0xffffffffL) != (fi.stripOffsets[s-1] & 0xffffffffL)+fi.stripLengths[s-1]) return false;
+		}
+		return true;
+	}
+}
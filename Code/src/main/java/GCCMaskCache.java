@@ -0,0 +1,59 @@
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Threshold masks already computed for parts of the current plane, most recently used first.
+ * A mask computed for a region can be reused as long as the parameters are the same
+ * and the area to show lies inside the part of the region that is not affected by its borders.
+ */
+class GCCMaskCache {
+	private final int capacity;
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+	GCCMaskCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	static class Entry {
+		final String key;
+		final int scale;
+		final Rectangle region; // processed area, halo included
+		final Rectangle inner; // area where the mask is not affected by the region borders
+		final GCCBitMask mask; // mask of region, downsampled by scale
+		final GCCPipeline.Levels levels; // levels of the plane the mask was thresholded with, null if with those of region
+
+		Entry(String key, int scale, Rectangle region, Rectangle inner, GCCBitMask mask, GCCPipeline.Levels levels) {
+			this.key = key;
+			this.scale = scale;
+			this.region = region;
+			this.inner = inner;
+			this.mask = mask;
+			this.levels = levels;
+		}
+	}
+
+	/** Mask computed with the same key and scale covering area, or null. */
+	public synchronized Entry get(String key, int scale, Rectangle area) {
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+			Entry e = it.next();
+			if (e.scale == scale && e.key.equals(key) && e.inner.contains(area)) {
+				it.remove();
+				entries.addFirst(e);
+				return e;
+			}
+		}
+		return null;
+	}
+
+	public synchronized void put(Entry e) {
+		entries.addFirst(e);
+		while (entries.size() > capacity) {
+			entries.removeLast();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+}
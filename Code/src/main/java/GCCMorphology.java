@@ -0,0 +1,118 @@
+import ij.Prefs;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+
+/**
+ * Grey level morphology with a rectangular structuring element, used for top-hat background removal.
+ * Minimum and maximum filters are separable and use the van Herk/Gil-Werman algorithm,
+ * so the cost per pixel does not depend on the size of the structuring element.
+ * Rows, then columns, are shared between threads.
+ */
+class GCCMorphology {
+	private GCCMorphology() {}
+
+	/**
+	 * New processor of the same type with the top-hat of ip, for a (2rx+1)x(2ry+1) structuring element,
+	 * its pixels taken from GCCBufferPool.
+	 * White top-hat (ip minus its opening) keeps bright objects smaller than the element,
+	 * black top-hat (closing of ip minus ip) keeps dark ones.
+	 */
+	public static ImageProcessor topHat(ImageProcessor ip, int rx, int ry, boolean white) {
+		ImageProcessor res = GCCBufferPool.copy(ip);
+		int width = ip.getWidth(), height = ip.getHeight();
+		// float copies of each channel, unless ip is 32-bit and already is its own
+		FloatProcessor buffer = new FloatProcessor(width, height, GCCBufferPool.getFloats(width*height, false));
+		float[] filtered = GCCBufferPool.getFloats(width*height, false);
+		for (int c = 0; c < ip.getNChannels(); c++) {
+			FloatProcessor fp = res.toFloat(c, buffer);
+			float[] pixels = (float[])fp.getPixels();
+			System.arraycopy(pixels, 0, filtered, 0, pixels.length);
+			// opening is a minimum then a maximum filter, closing the reverse
+			filter(filtered, width, height, rx, ry, !white);
+			filter(filtered, width, height, rx, ry, white);
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = white ? pixels[i]-filtered[i] : filtered[i]-pixels[i];
+			}
+			res.setPixels(c, fp);
+		}
+		GCCBufferPool.release(buffer);
+		GCCBufferPool.release(filtered);
+		return res;
+	}
+
+	/** In place minimum (or maximum) filter of pixels over a (2rx+1)x(2ry+1) rectangle, pixels outside the image are ignored. */
+	public static void filter(final float[] pixels, final int width, final int height, final int rx, final int ry, final boolean max) {
+		if (rx > 0) {
+			Thread[] threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(Prefs.getThreads(), height)));
+			final int nThreads = threads.length;
+			for (int t = 0; t < nThreads; t++) {
+				final int y0 = height*t/nThreads, y1 = height*(t+1)/nThreads;
+				threads[t] = new Thread() {
+					public void run() {
+						float[] line = new float[width];
+						float[] g = new float[width+2*rx], h = new float[width+2*rx];
+						for (int y = y0; y < y1; y++) {
+							System.arraycopy(pixels, y*width, line, 0, width);
+							filterLine(line, width, rx, max, g, h);
+							System.arraycopy(line, 0, pixels, y*width, width);
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+		if (ry > 0) {
+			Thread[] threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(Prefs.getThreads(), width)));
+			final int nThreads = threads.length;
+			for (int t = 0; t < nThreads; t++) {
+				final int x0 = width*t/nThreads, x1 = width*(t+1)/nThreads;
+				threads[t] = new Thread() {
+					public void run() {
+						float[] line = new float[height];
+						float[] g = new float[height+2*ry], h = new float[height+2*ry];
+						for (int x = x0; x < x1; x++) {
+							for (int y = 0, i = x; y < height; y++, i += width) {
+								line[y] = pixels[i];
+							}
+							filterLine(line, height, ry, max, g, h);
+							for (int y = 0, i = x; y < height; y++, i += width) {
+								pixels[i] = line[y];
+							}
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+	}
+
+	/**
+	 * van Herk/Gil-Werman: the line, padded by r on both sides, is cut in blocks of k = 2r+1 values.
+	 * g holds the running extremum from the start of each block, h from its end,
+	 * so the extremum of any window of k values is the one of h at its start and g at its end.
+	 */
+	private static void filterLine(float[] line, int n, int r, boolean max, float[] g, float[] h) {
+		int k = 2*r+1, m = n+2*r;
+		float pad = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+		for (int j = 0; j < m; j++) {
+			float v = j < r || j >= n+r ? pad : line[j-r];
+			if (j%k == 0) {
+				g[j] = v;
+			} else {
+				g[j] = max ? Math.max(g[j-1], v) : Math.min(g[j-1], v);
+			}
+		}
+		for (int j = m-1; j >= 0; j--) {
+			float v = j < r || j >= n+r ? pad : line[j-r];
+			if (j == m-1 || (j+1)%k == 0) {
+				h[j] = v;
+			} else {
+				h[j] = max ? Math.max(h[j+1], v) : Math.min(h[j+1], v);
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			line[i] = max ? Math.max(h[i], g[i+k-1]) : Math.min(h[i], g[i+k-1]);
+		}
+	}
+}
@@ -0,0 +1,392 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Threshold, labeling and counting steps of the plugin, without its window, with the parameters of a GCCProfile.
+ * GCCProcess runs its previews and results through them, GCCBenchmark runs them on synthetic plates.
+ * Between the steps of the threshold, checkCanceled is called, a subclass stops the threshold there by throwing.
+ * Parts of a plane are thresholded with the Levels of the whole plane.
+ */
+class GCCPipeline {
+	static final String[] AUTO_THRESHOLD_METHODS = {"Default", "Huang", "Intermodes", "IsoData", "IJ_IsoData", "Li", "MaxEntropy", "Mean", "MinError",
+													"Minimum", "Moments", "Otsu", "Percentile", "RenyiEntropy", "Shanbhag", "Triangle", "Yen"};
+	static final String[] AUTO_LOCAL_THRESHOLD_METHODS = {"Bernsen", "Contrast", "Mean", "Median", "MidGrey", "Niblack", "Otsu", "Phansalkar", "Sauvola"};
+
+	/** Cells of a labeling measured in full resolution pixels, and how many each of them counts for. */
+	static class Counts {
+		double[] x, y; // centroids, full resolution pixels
+		double[] area; // calibrated
+		int[] nucleusInCell; // nuclei of the other channel inside the cell, with channel correction
+		int[][] nucleusInCellPos; // their centroids, x and y in turn
+		boolean[] duplicate; // closer than the minimal distance to a larger cell
+		int[] count; // 0 for duplicates and cells removed by channel correction
+	}
+
+	/**
+	 * Values threshold takes from its whole input: display ranges of the inversion and of the 8-bit conversions,
+	 * and threshold levels. Given empty, threshold records them; given recorded, it uses them instead of those of its input,
+	 * so that a part of a plane is thresholded with the values of the whole plane.
+	 */
+	static class Levels {
+		private double[] values = new double[8];
+		private int size = 0;
+		private int next = -1; // next value replayed, -1 while recording
+		private boolean recorded = false;
+
+		public boolean isRecorded() {
+			return recorded;
+		}
+
+		/** Recorded levels replayed from the first one, the values are shared. */
+		private Levels replay() {
+			Levels replay = new Levels();
+			replay.values = values;
+			replay.size = size;
+			replay.next = 0;
+			return replay;
+		}
+
+		private boolean isReplaying() {
+			return next >= 0;
+		}
+
+		private double next() {
+			if (next >= size) {
+				throw new IllegalStateException("Levels recorded with other parameters");
+			}
+			return values[next++];
+		}
+
+		private double add(double value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2*size);
+			}
+			values[size++] = value;
+			return value;
+		}
+	}
+
+	/** Called between the steps of threshold, does nothing here. */
+	protected void checkCanceled() {}
+
+	/**
+	 * Threshold of ip with touching cells split if asked, null if the method doesn't exist.
+	 * ip is modified, ipCal gives its pixel size, pixel radii are divided by radiusScale.
+	 */
+	public GCCBitMask computeMask(ImageProcessor ip, Calibration ipCal, double radiusScale, GCCProfile p) {
+		return computeMask(ip, ipCal, radiusScale, p, null);
+	}
+
+	/** computeMask with the levels of a larger image, or recording those of ip if levels is empty (see Levels). */
+	public GCCBitMask computeMask(ImageProcessor ip, Calibration ipCal, double radiusScale, GCCProfile p, Levels levels) {
+		GCCBitMask mask = threshold(ip, ipCal, radiusScale, p, levels);
+		checkCanceled();
+		if (mask != null && p.getBoolean("splitCells")) {
+			mask = GCCWatershed.split(mask);
+		}
+		return mask;
+	}
+
+	/**
+	 * Threshold method applied on ip, returns the binary mask or null if the method doesn't exist.
+	 * ip is modified, ipCal gives its pixel size, pixel radii are divided by radiusScale.
+	 */
+	public GCCBitMask threshold(ImageProcessor ip, Calibration ipCal, double radiusScale, GCCProfile p) {
+		return threshold(ip, ipCal, radiusScale, p, null);
+	}
+
+	/** threshold with the levels of a larger image, or recording those of ip if levels is empty (see Levels). */
+	public GCCBitMask threshold(ImageProcessor ip, Calibration ipCal, double radiusScale, GCCProfile p, Levels levels) {
+		if (levels == null) {
+			levels = new Levels(); // recorded but not kept
+		} else if (levels.isRecorded()) {
+			return thresholdWith(ip, ipCal, radiusScale, p, levels.replay());
+		}
+		GCCBitMask mask = thresholdWith(ip, ipCal, radiusScale, p, levels);
+		levels.recorded = true;
+		return mask;
+	}
+
+	/** threshold recording levels, or replaying them. */
+	private GCCBitMask thresholdWith(ImageProcessor ip, Calibration ipCal, double radiusScale, GCCProfile p, Levels levels) {
+		ImageProcessor input = ip;
+		if (p.getBoolean("whiteBackground")) {
+			double[] range = getRange(ip, levels);
+			GCCFilters.invert(ip, range[0], range[1]);
+		}
+		checkCanceled();
+		switch(p.getInt("methodSelected")) {
+		case 0: // "Auto Threshold"
+			double gaussianSigmaAuto = p.getDouble("gaussianSigmaAuto");
+			double medianRadiusAuto = p.getDouble("medianRadiusAuto");
+			ImageProcessor filtered = null;
+			if (gaussianSigmaAuto > 0) {
+				ip = filtered = removeBackground(ip, p.getInt("backgroundAuto"), gaussianSigmaAuto, ipCal);
+				checkCanceled();
+			}
+			if (medianRadiusAuto > 0) {
+				GCCFilters.median(ip, medianRadiusAuto/radiusScale);
+				checkCanceled();
+			}
+			double[] range = getRange(ip, levels);
+			ImageProcessor bytes = GCCFilters.toByte(ip, range[0], range[1]);
+			GCCBitMask mask = autoThreshold(bytes, AUTO_THRESHOLD_METHODS[p.getInt("autoThMethodSelected")], p.getBoolean("ignoreBlack"), p.getBoolean("ignoreWhite"), levels);
+			releaseIntermediates(input, filtered, bytes);
+			return mask;
+		case 1: // "Auto Local Threshold"
+			double gaussianSigmaAutoLoc = p.getDouble("gaussianSigmaAutoLoc");
+			double medianRadiusAutoLoc = p.getDouble("medianRadiusAutoLoc");
+			double localThRadius = p.getDouble("localThRadius");
+			ImageProcessor filteredLoc = null;
+			if (gaussianSigmaAutoLoc > 0) {
+				ip = filteredLoc = removeBackground(ip, p.getInt("backgroundAutoLoc"), gaussianSigmaAutoLoc, ipCal);
+				checkCanceled();
+			}
+			if (medianRadiusAutoLoc > 0) {
+				GCCFilters.median(ip, medianRadiusAutoLoc/radiusScale);
+				checkCanceled();
+			}
+			double[] rangeLoc = getRange(ip, levels);
+			ImageProcessor bytesLoc = GCCFilters.toByte(ip, rangeLoc[0], rangeLoc[1]);
+			ip = bytesLoc;
+			double localParm1 = 0, localParm2 = 0;
+			switch(p.getInt("autoLocalThMethodSelected")) {
+			case 0:
+				localParm1 = p.getDouble("localBernsenParm1");
+				break;
+			case 2:
+				localParm1 = p.getDouble("localMeanParm1");
+				break;
+			case 3:
+				localParm1 = p.getDouble("localMedianParm1");
+				break;
+			case 4:
+				localParm1 = p.getDouble("localMidGreyParm1");
+				break;
+			case 5:
+				localParm1 = p.getDouble("localNiblackParm1");
+				localParm2 = p.getDouble("localNiblackParm2");
+				break;
+			case 7:
+				localParm1 = p.getDouble("localPhansalkarParm1");
+				localParm2 = p.getDouble("localPhansalkarParm2");
+				break;
+			case 8:
+				localParm1 = p.getDouble("localSauvolaParm1");
+				localParm2 = p.getDouble("localSauvolaParm2");
+				break;
+			}
+			// Auto Local Threshold is a Fiji plugin, still called by its command on an image that is not displayed
+			ImagePlus local = new ImagePlus("local", ip);
+			IJ.run(local, "Auto Local Threshold", "method="+AUTO_LOCAL_THRESHOLD_METHODS[p.getInt("autoLocalThMethodSelected")]+" radius="+localThRadius/radiusScale+
+					" parameter_1="+localParm1+" parameter_2="+localParm2+" white");
+			GCCBitMask localMask = GCCBitMask.fromMask(local.getProcessor());
+			releaseIntermediates(input, filteredLoc, bytesLoc, local.getProcessor());
+			return localMask;
+		case 2: // Chastagnier Threshold
+			ImageProcessor filteredLow = removeBackground(ip, p.getInt("backgroundChast"), p.getDouble("gaussianSigmaChast1"), ipCal);
+			GCCBitMask gaussianLow = autoThreshold(filteredLow, "Li", false, false, levels);
+			checkCanceled();
+			ImageProcessor filteredHigh = removeBackground(ip, p.getInt("backgroundChast"), p.getDouble("gaussianSigmaChast2"), ipCal);
+			checkCanceled();
+			GCCBitMask gaussianHigh = autoThreshold(filteredHigh, "Li", false, false, levels);
+			releaseIntermediates(input, filteredLow, filteredHigh);
+			gaussianLow.and(gaussianHigh);
+			GCCBitMask otsu = autoThreshold(ip, "Otsu", true, true, levels);
+			otsu.or(gaussianLow);
+			return otsu;
+		default:
+			return null;
+		} // end of switch
+	}
+
+	/** Range of the pixel values of ip, as "8-bit" and "Invert" set it, or the next one of levels. */
+	private static double[] getRange(ImageProcessor ip, Levels levels) {
+		if (levels.isReplaying()) {
+			return new double[] {levels.next(), levels.next()};
+		}
+		ip.resetMinAndMax();
+		return new double[] {levels.add(ip.getMin()), levels.add(ip.getMax())};
+	}
+
+	/** GCCFilters.autoThreshold of ip, with the range of its 8-bit conversion and its level taken from levels. */
+	private static GCCBitMask autoThreshold(ImageProcessor ip, String method, boolean ignoreBlack, boolean ignoreWhite, Levels levels) {
+		if (!GCCFilters.isThresholdedDirectly(ip, method)) {
+			ImageProcessor view = GCCBufferPool.view(ip); // the display range of ip is kept
+			double[] range = getRange(view, levels);
+			ByteProcessor bp = GCCFilters.toByte(view, range[0], range[1]);
+			GCCBitMask mask = autoThreshold(bp, method, ignoreBlack, ignoreWhite, levels);
+			GCCBufferPool.release(bp);
+			return mask;
+		}
+		double level = levels.isReplaying() ? levels.next() : levels.add(GCCFilters.getThreshold(ip, method, ignoreBlack, ignoreWhite));
+		return GCCFilters.applyThreshold(ip, level);
+	}
+
+	/**
+	 * Background of ip removed with the selected method, size being the Gaussian sigma or the top-hat radius (calibrated).
+	 * Returns a new processor.
+	 */
+	private static ImageProcessor removeBackground(ImageProcessor ip, int background, double size, Calibration ipCal) {
+		switch(background) {
+		case 1:
+		case 2:
+			int rx = (int)Math.round(size/ipCal.pixelWidth), ry = (int)Math.round(size/ipCal.pixelHeight);
+			return GCCMorphology.topHat(ip, rx, ry, background == 1);
+		default:
+			return GCCFilters.highPass(ip, size, ipCal);
+		}
+	}
+
+	/** Gives back to GCCBufferPool the images made by threshold, each once, except its input. */
+	private static void releaseIntermediates(ImageProcessor input, ImageProcessor... intermediates) {
+		Set<Object> released = new HashSet<Object>();
+		released.add(input.getPixels());
+		for (ImageProcessor tmp : intermediates) {
+			if (tmp != null && released.add(tmp.getPixels())) {
+				GCCBufferPool.release(tmp);
+			}
+		}
+	}
+
+	/** Objects of mask within the size (calibrated, pixelArea being the area of a mask pixel) and circularity ranges. */
+	public static GCCLabeling labelCells(GCCBitMask mask, double[] sizeRange, double[] circularityRange, double pixelArea) {
+		GCCLabeling lab = GCCLabeling.label(mask);
+		lab.filter(sizeRange[0], sizeRange[1], circularityRange[0], circularityRange[1], pixelArea);
+		return lab;
+	}
+
+	/**
+	 * Measures the cells of lab, labeled on a mask of the area at x0, y0 downsampled by sx, sy, and counts them.
+	 * Without nuclei, a cell closer than minDistance to a larger one is a duplicate, counted 0.
+	 * With the cells of the other channel as nuclei (channel correction), a cell counts once per nucleus
+	 * it holds at least half of, those with a mean area per nucleus above sizeRange are removed,
+	 * below sizeRange they count once per minimal area.
+	 */
+	public static Counts countCells(GCCLabeling lab, double sx, double sy, int x0, int y0, Calibration cal,
+			GCCSpans[] nuclei, double minDistance, double[] sizeRange) {
+		int nCells = lab.getCount();
+		Counts c = new Counts();
+		c.x = new double[nCells];
+		c.y = new double[nCells];
+		c.area = new double[nCells];
+		c.nucleusInCell = new int[nCells];
+		c.nucleusInCellPos = new int[nCells][];
+		c.count = new int[nCells];
+		GCCSpans[] cellSpans = nuclei != null ? GCCSpans.fromLabeling(lab) : null;
+		int searchStart = 0;
+		int searchIndex = 0;
+		int searchStop = nuclei != null ? nuclei.length : 0;
+		for (int iCell = 0; iCell < nCells; iCell++) {
+			c.x[iCell] = lab.getXCentroid(iCell)*sx+x0; // full resolution pixel values
+			c.y[iCell] = lab.getYCentroid(iCell)*sy+y0;
+			c.area[iCell] = lab.getArea(iCell)*sx*sy*cal.pixelWidth*cal.pixelHeight; // calibrated area
+			if (nuclei != null) {
+				int[] pos = new int[8];
+				int nPos = 0;
+				while (searchStart < searchStop && nuclei[searchStart].getYMax() < lab.getYMin(iCell)) {
+					searchStart++;
+				}
+				searchIndex = searchStart;
+				int xStart = lab.getXMin(iCell);
+				int xStop = lab.getXMax(iCell);
+				int yStop = lab.getYMax(iCell);
+				while (searchIndex < searchStop && nuclei[searchIndex].getYMin() <= yStop) {
+					GCCSpans nucleus = nuclei[searchIndex];
+					if (!(nucleus.getXMax() < xStart || nucleus.getXMin() > xStop)) {
+						if (cellSpans[iCell].intersectionArea(nucleus) >= 0.5*nucleus.getArea()) { // if half the nucleus is inside the cell
+							c.nucleusInCell[iCell]++;
+							if (nPos == pos.length) {
+								pos = Arrays.copyOf(pos, 2*nPos);
+							}
+							pos[nPos++] = (int)nucleus.getXCentroid();
+							pos[nPos++] = (int)nucleus.getYCentroid();
+						}
+					}
+					searchIndex++;
+				}
+				c.nucleusInCellPos[iCell] = Arrays.copyOf(pos, nPos);
+			}
+		}
+
+		// comment faire pour afficher les noyaux qui sont dans des cellules ? -> ne pas le faire
+		// comment compter le vrai nombre de cellules qui ne correspond ni au nombre de cellules, ni au nombre de noyaux... ? -> dupliquer les ROIs
+		// quand il y a plusieurs noyaux, comme ça ça correspond au nombre de ROIs
+		// et si une cellule comporte plusieurs noyaux mais que du coup sa taille passe en dessous du seuil, la virer, la compter comme une ?
+		// -> 1 ou floor(area / min_area)
+		if (nuclei != null) {
+			c.duplicate = new boolean[nCells]; // disabled with channel correction
+			for (int i = 0; i < nCells; i++) {
+				if (c.nucleusInCell[i] == 0) {
+					c.count[i] = 0; // removed
+				} else {
+					double meanArea = c.area[i]/(double)c.nucleusInCell[i];
+					if (meanArea > sizeRange[1]) {
+						c.count[i] = 0;
+					} else if (meanArea < sizeRange[0]) {
+						c.count[i] = Math.max((int)Math.floor(c.area[i]/sizeRange[0]), 1);
+					} else {
+						c.count[i] = c.nucleusInCell[i];
+					}
+				}
+			}
+		} else {
+			c.duplicate = areCellDuplicates(c.x, c.y, c.area, minDistance);
+			for (int i = 0; i < nCells; i++) {
+				c.count[i] = c.duplicate[i] ? 0 : 1;
+			}
+		}
+		return c;
+	}
+
+	/** Cells closer than distance to a larger one, cells being in increasing y order. None if distance is zero. */
+	public static boolean[] areCellDuplicates(double[] xPos, double[] yPos, double[] areaCell, double distance) {
+		if (xPos.length != yPos.length) return null;
+		boolean[] isDuplicate = new boolean[xPos.length];
+		if (distance > 0) { // disabled if distance is zero
+			for (int i = 0; i < xPos.length; i++) {
+				int j = i+1;
+				while (j < xPos.length && yPos[j]-yPos[i] <= distance) { // compare only with ROIs in the distance lines range
+					if (Math.abs(xPos[j]-xPos[i]) <= distance) { // compare only with ROIs in the range [pos-distance; pos+distance]
+						if (Math.sqrt(Math.pow(xPos[j]-xPos[i], 2)+Math.pow(yPos[j]-yPos[i], 2)) <= distance) {
+							if (areaCell[i] > areaCell[j]) {
+								isDuplicate[j] = true;
+							} else {
+								isDuplicate[i] = true;
+							}
+						}
+					}
+					j++;
+				}
+
+			}
+		}
+		return isDuplicate;
+	}
+
+	/** Number of cells counted in region, a cell being in the region of its centroid. */
+	public static int countInRegion(GCCSpans region, double[] x, double[] y, int[] count) {
+		int nInside = 0;
+		for (int iCell = 0; iCell < x.length; iCell++) {
+			if (count[iCell] > 0 && region.contains((int)x[iCell], (int)y[iCell])) {
+				nInside += count[iCell];
+			}
+		}
+		return nInside;
+	}
+
+	public static double[] parseRange(String range) { // "min-max" or "min" like in Analyze Particles
+		String[] parts = range.split("-");
+		double[] minMax = new double[2];
+		minMax[0] = Double.parseDouble(parts[0].trim());
+		minMax[1] = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : Double.POSITIVE_INFINITY;
+		return minMax;
+	}
+}
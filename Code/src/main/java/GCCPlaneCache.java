@@ -0,0 +1,202 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of decoded planes in front of a virtual stack, like the ones of the Bio-Formats importer.
+ * The most recently used planes are kept within a byte budget, on the heap or in direct buffers outside of it.
+ * After each plane asked for, the next and previous slices and frames of the same channel are read
+ * in background, so that moving through the stack while tuning parameters doesn't wait for the disk.
+ * Processors returned have their own copy of the pixels.
+ */
+class GCCPlaneCache extends VirtualStack {
+	private final ImageStack source;
+	private final int nChannels, nSlices, nFrames;
+	private final long budget;
+	private final boolean offHeap;
+	private final LinkedHashMap<Integer, Plane> planes = new LinkedHashMap<Integer, Plane>(16, 0.75f, true); // least recently used first
+	private final Set<Integer> pending = new HashSet<Integer>(); // planes being read in background
+	private long bytes = 0;
+	private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "GCC plane prefetch");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static class Plane {
+		final Object pixels; // null if stored off heap
+		final ByteBuffer buffer;
+		final ColorModel cm;
+		final long bytes;
+
+		Plane(ImageProcessor ip, boolean offHeap) {
+			cm = ip.getColorModel();
+			Object p = ip.getPixels();
+			int n = ip.getPixelCount();
+			int bytesPerPixel = p instanceof byte[] ? 1 : p instanceof short[] ? 2 : 4;
+			bytes = (long)n*bytesPerPixel;
+			if (!offHeap) { // the source may reuse its arrays
+				if (p instanceof byte[]) pixels = ((byte[])p).clone();
+				else if (p instanceof short[]) pixels = ((short[])p).clone();
+				else if (p instanceof float[]) pixels = ((float[])p).clone();
+				else pixels = ((int[])p).clone();
+				buffer = null;
+				return;
+			}
+			pixels = null;
+			buffer = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+			if (p instanceof byte[]) buffer.put((byte[])p).rewind();
+			else if (p instanceof short[]) buffer.asShortBuffer().put((short[])p);
+			else if (p instanceof float[]) buffer.asFloatBuffer().put((float[])p);
+			else buffer.asIntBuffer().put((int[])p);
+		}
+	}
+
+	private GCCPlaneCache(ImageStack source, int nChannels, int nSlices, int nFrames, long budget, boolean offHeap) {
+		super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+		this.source = source;
+		this.nChannels = nChannels;
+		this.nSlices = nSlices;
+		this.nFrames = nFrames;
+		this.budget = budget;
+		this.offHeap = offHeap;
+		setBitDepth(source.getBitDepth());
+	}
+
+	/**
+	 * Puts a cache in front of the virtual stack of imp, with the budget of the "GCC.planeCacheMB" preference
+	 * (a quarter of the memory available to ImageJ by default), off heap if "GCC.planeCacheOffHeap" is set.
+	 */
+	public static void install(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		if (!stack.isVirtual() || stack.getSize() < 2 || stack instanceof GCCPlaneCache || stack instanceof GCCMappedTiff) return;
+		long budget = (long)ij.Prefs.get("GCC.planeCacheMB", IJ.maxMemory()/4 >> 20) << 20;
+		if (budget <= 0) return;
+		boolean offHeap = ij.Prefs.get("GCC.planeCacheOffHeap", false);
+		imp.setStack(new GCCPlaneCache(stack, imp.getNChannels(), imp.getNSlices(), imp.getNFrames(), budget, offHeap),
+				imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+	}
+
+	/** Stops reading ahead and frees the planes. */
+	public void dispose() {
+		prefetcher.shutdownNow();
+		synchronized (this) {
+			planes.clear();
+			bytes = 0;
+		}
+	}
+
+	public int getSize() {
+		return source.getSize();
+	}
+
+	public String getSliceLabel(int n) {
+		return source.getSliceLabel(n);
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		Plane plane;
+		synchronized (this) {
+			plane = planes.get(n);
+		}
+		if (plane == null) {
+			plane = read(n);
+		}
+		prefetchAround(n);
+		return toProcessor(plane);
+	}
+
+	private Plane read(int n) {
+		ImageProcessor ip;
+		synchronized (source) { // readers of virtual stacks are not thread safe
+			ip = source.getProcessor(n);
+		}
+		Plane plane = new Plane(ip, offHeap);
+		synchronized (this) {
+			if (plane.bytes <= budget && !planes.containsKey(n)) {
+				planes.put(n, plane);
+				bytes += plane.bytes;
+				for (Iterator<Map.Entry<Integer, Plane>> it = planes.entrySet().iterator(); bytes > budget && it.hasNext();) {
+					bytes -= it.next().getValue().bytes;
+					it.remove();
+				}
+			}
+		}
+		return plane;
+	}
+
+	/** Reads the previous and next slices and frames of plane n in background, planes being in XYCZT order. */
+	private void prefetchAround(int n) {
+		int i = n-1;
+		int c = i%nChannels, z = i/nChannels%nSlices, t = i/(nChannels*nSlices);
+		int[][] neighbours = {{z+1, t}, {z-1, t}, {z, t+1}, {z, t-1}};
+		for (int[] zt : neighbours) {
+			if (zt[0] < 0 || zt[0] >= nSlices || zt[1] < 0 || zt[1] >= nFrames) continue;
+			final int index = (zt[1]*nSlices+zt[0])*nChannels+c+1;
+			synchronized (this) {
+				if (planes.containsKey(index) || !pending.add(index)) continue;
+			}
+			try {
+				prefetcher.execute(new Runnable() {
+					public void run() {
+						try {
+							read(index);
+						} finally {
+							synchronized (GCCPlaneCache.this) {
+								pending.remove(index);
+							}
+						}
+					}
+				});
+			} catch (java.util.concurrent.RejectedExecutionException ex) {
+				return; // disposed
+			}
+		}
+	}
+
+	private ImageProcessor toProcessor(Plane plane) {
+		int w = getWidth(), h = getHeight();
+		switch (getBitDepth()) {
+		case 8:
+			byte[] bytePixels = new byte[w*h];
+			if (plane.pixels != null) System.arraycopy(plane.pixels, 0, bytePixels, 0, bytePixels.length);
+			else plane.buffer.duplicate().get(bytePixels);
+			return new ByteProcessor(w, h, bytePixels, plane.cm);
+		case 16:
+			short[] shortPixels = new short[w*h];
+			if (plane.pixels != null) System.arraycopy(plane.pixels, 0, shortPixels, 0, shortPixels.length);
+			else plane.buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer().get(shortPixels);
+			return new ShortProcessor(w, h, shortPixels, plane.cm);
+		case 32:
+			float[] floatPixels = new float[w*h];
+			if (plane.pixels != null) System.arraycopy(plane.pixels, 0, floatPixels, 0, floatPixels.length);
+			else plane.buffer.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer().get(floatPixels);
+			return new FloatProcessor(w, h, floatPixels, plane.cm);
+		default:
+			int[] rgbPixels = new int[w*h];
+			if (plane.pixels != null) System.arraycopy(plane.pixels, 0, rgbPixels, 0, rgbPixels.length);
+			else plane.buffer.duplicate().order(ByteOrder.nativeOrder()).asIntBuffer().get(rgbPixels);
+			return new ColorProcessor(w, h, rgbPixels);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values of the parameter fields taken at one time, so that a plane can be processed
+ * on any thread and with other parameters than those displayed.
+ * Names are those of the GCC.* preferences, values are kept as typed in the fields.
+ * Saved as tab separated "name=value" pairs, one profile per channel.
+ */
+class GCCProfile {
+	private final Map<String, String> values = new LinkedHashMap<String, String>();
+
+	public void set(String name, Object value) {
+		values.put(name, String.valueOf(value));
+	}
+
+	/** Value of the field, "" if the profile doesn't have it. */
+	public String get(String name) {
+		String value = values.get(name);
+		return value != null ? value : "";
+	}
+
+	public double getDouble(String name) {
+		return Double.parseDouble(get(name));
+	}
+
+	public int getInt(String name) {
+		return Integer.parseInt(get(name));
+	}
+
+	public boolean getBoolean(String name) {
+		return Boolean.parseBoolean(get(name));
+	}
+
+	public boolean has(String name) {
+		return values.containsKey(name);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (sb.length() > 0) sb.append('\t');
+			sb.append(e.getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+	/** Values the fields of the plugin show when no preference is saved. */
+	public static GCCProfile getDefaults() {
+		GCCProfile p = new GCCProfile();
+		p.set("methodSelected", 0);
+		p.set("autoThMethodSelected", 0);
+		p.set("autoLocalThMethodSelected", 0);
+		p.set("backgroundAuto", 0);
+		p.set("backgroundAutoLoc", 0);
+		p.set("backgroundChast", 0);
+		String[] doubles = {"gaussianSigmaAuto", "10", "medianRadiusAuto", "3", "gaussianSigmaAutoLoc", "10", "medianRadiusAutoLoc", "3", "localThRadius", "10",
+				"localBernsenParm1", "0", "localMeanParm1", "0", "localMedianParm1", "0", "localMidGreyParm1", "0", "localNiblackParm1", "0", "localNiblackParm2", "0",
+				"localPhansalkarParm1", "0", "localPhansalkarParm2", "0", "localSauvolaParm1", "0", "localSauvolaParm2", "0",
+				"gaussianSigmaChast1", "5", "gaussianSigmaChast2", "15"};
+		for (int i = 0; i < doubles.length; i += 2) {
+			p.set(doubles[i], Double.parseDouble(doubles[i+1])); // shown like ij.Prefs.get(key, double)
+		}
+		p.set("cellSize", "1-100");
+		p.set("cellCircularity", "0.00-1.00");
+		p.set("minDistance", "10");
+		p.set("channelCorrection", "1");
+		p.set("ignoreBlack", true);
+		p.set("ignoreWhite", false);
+		p.set("splitCells", false);
+		p.set("whiteBackground", false);
+		p.set("channelCorrectionEnabled", false);
+		return p;
+	}
+
+	/** Profile saved by toString(), null if str is null or empty. */
+	public static GCCProfile parse(String str) {
+		if (str == null || str.isEmpty()) return null;
+		GCCProfile profile = new GCCProfile();
+		for (String pair : str.split("\t")) {
+			int index = pair.indexOf('=');
+			if (index > 0) {
+				profile.values.put(pair.substring(0, index), pair.substring(index+1));
+			}
+		}
+		return profile;
+	}
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results rows of each image plane already saved, stored in GeneralCellCount/ResultCache.txt.
+ * A plane is found again if its key, built from the content of the files used and all parameters, is unchanged.
+ * File contents are identified by their SHA-256, only computed again when size or modification time changed.
+ * Lines of the file are tab separated:
+ * "F", path, size, modification time, hash  for an input file,
+ * "R", plane name, key, result rows  for a saved plane.
+ */
+class GCCResultCache {
+	public static final String FILE_NAME = "ResultCache.txt";
+	private final File file;
+	private final Map<String, String[]> fileHashes = new HashMap<String, String[]>(); // path -> size, time, hash
+	private final Map<String, String[]> results = new LinkedHashMap<String, String[]>(); // plane -> key, rows...
+
+	/** Cache of the GeneralCellCount folder, read from disk if it exists. */
+	GCCResultCache(String folder) {
+		file = new File(folder, FILE_NAME);
+		read();
+	}
+
+	/** Adds the content of the file, saved by this instance or by another one working on the same folder. */
+	private void read() {
+		if (!file.exists()) return;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts[0].equals("F") && parts.length == 5) {
+					fileHashes.put(parts[1], new String[] {parts[2], parts[3], parts[4]});
+				} else if (parts[0].equals("R") && parts.length >= 3) {
+					String[] value = new String[parts.length-2];
+					System.arraycopy(parts, 2, value, 0, value.length);
+					results.put(parts[1], value);
+				}
+			}
+		} catch (IOException ex) {
+			results.clear(); // unreadable cache, everything is computed again
+		}
+	}
+
+	public String getFolder() {
+		return file.getParent();
+	}
+
+	/** Rows saved for plane with the same key, or null. */
+	public String[] get(String plane, String key) {
+		String[] value = results.get(plane);
+		if (value == null || !value[0].equals(key)) return null;
+		String[] rows = new String[value.length-1];
+		System.arraycopy(value, 1, rows, 0, rows.length);
+		return rows;
+	}
+
+	/** Saves the rows of plane, with the entries saved meanwhile by other instances. Call it while holding the results lock. */
+	public void put(String plane, String key, String[] rows) throws IOException {
+		read();
+		String[] value = new String[rows.length+1];
+		value[0] = key;
+		System.arraycopy(rows, 0, value, 1, rows.length);
+		results.put(plane, value);
+		save();
+	}
+
+	/** Hash of the content of f, "-" if it doesn't exist. */
+	public String getFileHash(File f) throws IOException {
+		if (!f.exists()) return "-";
+		String path = f.getAbsolutePath();
+		String size = String.valueOf(f.length()), time = String.valueOf(f.lastModified());
+		String[] known = fileHashes.get(path);
+		if (known != null && known[0].equals(size) && known[1].equals(time)) {
+			return known[2];
+		}
+		MessageDigest md = newDigest();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = new FileInputStream(f)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				md.update(buffer, 0, n);
+			}
+		}
+		String hash = toHex(md.digest());
+		fileHashes.put(path, new String[] {size, time, hash});
+		return hash;
+	}
+
+	/** SHA-256 of the parts, in hexadecimal. */
+	public static String hash(String... parts) {
+		MessageDigest md = newDigest();
+		for (String part : parts) {
+			md.update(part.getBytes(StandardCharsets.UTF_8));
+			md.update((byte)0);
+		}
+		return toHex(md.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex); // every Java platform has SHA-256
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(2*bytes.length);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private void save() throws IOException {
+		File tmp = new File(file.getPath()+".tmp");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, String[]> e : fileHashes.entrySet()) {
+				String[] v = e.getValue();
+				out.write("F\t"+e.getKey()+"\t"+v[0]+"\t"+v[1]+"\t"+v[2]+"\n");
+			}
+			for (Map.Entry<String, String[]> e : results.entrySet()) {
+				out.write("R\t"+e.getKey());
+				for (String s : e.getValue()) {
+					out.write("\t"+s);
+				}
+				out.write("\n");
+			}
+		}
+		if (!tmp.renameTo(file)) { // renameTo doesn't replace an existing file on every platform
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("Cannot write "+file);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.util.ThreadUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes ROI zip files like the ROI Manager does, without going through it.
+ * Entries are read in one pass over the file, then decoded by RoiDecoder in parallel.
+ */
+class GCCRoiZip {
+	private GCCRoiZip() {}
+
+	/** Rois of the zip file in the order of its entries, named like the ROI Manager names them. */
+	public static Roi[] read(String path) throws IOException {
+		final List<byte[]> data = new ArrayList<byte[]>();
+		final List<String> names = new ArrayList<String>();
+		try (ZipInputStream in = new ZipInputStream(new FileInputStream(path))) {
+			ZipEntry entry;
+			byte[] buffer = new byte[8192];
+			while ((entry = in.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (!name.endsWith(".roi")) continue;
+				ByteArrayOutputStream out = new ByteArrayOutputStream(entry.getSize() > 0 ? (int)entry.getSize() : 1024);
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+				data.add(out.toByteArray());
+				names.add(name.substring(0, name.length()-4));
+			}
+		}
+		final Roi[] rois = new Roi[data.size()];
+		final AtomicInteger next = new AtomicInteger();
+		final IOException[] error = new IOException[1];
+		Thread[] threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(Prefs.getThreads(), rois.length)));
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = next.getAndIncrement(); i < rois.length; i = next.getAndIncrement()) {
+						try {
+							Roi roi = new RoiDecoder(data.get(i), names.get(i)).getRoi();
+							if (roi != null) {
+								roi.setName(names.get(i));
+							}
+							rois[i] = roi;
+						} catch (IOException ex) {
+							error[0] = ex;
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		if (error[0] != null) throw error[0];
+		return removeNulls(rois);
+	}
+
+	/** Saves rois in a zip file the ROI Manager can open, entries named after the rois. */
+	public static void write(String path, Roi[] rois) throws IOException {
+		try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+			for (int i = 0; i < rois.length; i++) {
+				String name = rois[i].getName() != null ? rois[i].getName() : String.valueOf(i+1);
+				out.putNextEntry(new ZipEntry(name+".roi"));
+				out.write(RoiEncoder.saveAsByteArray(rois[i]));
+				out.closeEntry();
+			}
+		}
+	}
+
+	/** Spans of the rois of the zip file in an image of size width x height, computed in parallel. */
+	public static GCCSpans[] readSpans(String path, final int width, final int height) throws IOException {
+		final Roi[] rois = read(path);
+		final GCCSpans[] spans = new GCCSpans[rois.length];
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(Prefs.getThreads(), rois.length)));
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = next.getAndIncrement(); i < rois.length; i = next.getAndIncrement()) {
+						spans[i] = GCCSpans.fromRoi(rois[i], width, height);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		return spans;
+	}
+
+	private static Roi[] removeNulls(Roi[] rois) { // entries RoiDecoder doesn't know
+		int n = 0;
+		for (Roi roi : rois) {
+			if (roi != null) n++;
+		}
+		if (n == rois.length) return rois;
+		Roi[] res = new Roi[n];
+		n = 0;
+		for (Roi roi : rois) {
+			if (roi != null) res[n++] = roi;
+		}
+		return res;
+	}
+}
@@ -0,0 +1,228 @@
+import ij.gui.Roi;
+import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Run-length encoded object: horizontal spans sorted by row then start, that do not overlap.
+ * Span k covers pixels xStart[k] to xEnd[k]-1 of line row[k].
+ * Used for cells and regions instead of ImageJ Rois when measuring overlaps and containment.
+ */
+class GCCSpans {
+	private final int n;
+	private final int[] row, xStart, xEnd;
+	private long area;
+	private double xSum, ySum;
+	private int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE, xMax = -1, yMax = -1;
+
+	private GCCSpans(int[] row, int[] xStart, int[] xEnd, int n) {
+		this.row = row;
+		this.xStart = xStart;
+		this.xEnd = xEnd;
+		this.n = n;
+		for (int k = 0; k < n; k++) {
+			int len = xEnd[k]-xStart[k];
+			area += len;
+			xSum += (double)(xStart[k]+xEnd[k]-1)*len/2.0;
+			ySum += (double)row[k]*len;
+			if (xStart[k] < xMin) xMin = xStart[k];
+			if (xEnd[k]-1 > xMax) xMax = xEnd[k]-1;
+		}
+		if (n > 0) {
+			yMin = row[0];
+			yMax = row[n-1];
+		}
+	}
+
+	/** Spans of every object of a labeling, object i at index i, in two passes over the label image. */
+	public static GCCSpans[] fromLabeling(GCCLabeling lab) {
+		int count = lab.getCount(), width = lab.getWidth(), height = lab.getHeight();
+		int[] labels = lab.getLabels();
+		int[] nSpans = new int[count];
+		for (int y = 0; y < height; y++) {
+			int prev = 0;
+			for (int i = y*width; i < (y+1)*width; i++) {
+				int l = labels[i];
+				if (l != 0 && l != prev) nSpans[l-1]++;
+				prev = l;
+			}
+		}
+		int[][] rows = new int[count][], starts = new int[count][], ends = new int[count][];
+		for (int c = 0; c < count; c++) {
+			rows[c] = new int[nSpans[c]];
+			starts[c] = new int[nSpans[c]];
+			ends[c] = new int[nSpans[c]];
+			nSpans[c] = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			int prev = 0;
+			for (int x = 0, i = y*width; x <= width; x++, i++) {
+				int l = x < width ? labels[i] : 0;
+				if (l != prev) {
+					if (prev != 0) {
+						ends[prev-1][nSpans[prev-1]++] = x;
+					}
+					if (l != 0) {
+						rows[l-1][nSpans[l-1]] = y;
+						starts[l-1][nSpans[l-1]] = x;
+					}
+				}
+				prev = l;
+			}
+		}
+		GCCSpans[] spans = new GCCSpans[count];
+		for (int c = 0; c < count; c++) {
+			spans[c] = new GCCSpans(rows[c], starts[c], ends[c], nSpans[c]);
+		}
+		return spans;
+	}
+
+	/** Spans of the pixels inside roi, clipped to an image of size width x height. */
+	public static GCCSpans fromRoi(Roi roi, int width, int height) {
+		Rectangle b = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		int x0 = Math.max(b.x, 0), x1 = Math.min(b.x+b.width, width);
+		int y0 = Math.max(b.y, 0), y1 = Math.min(b.y+b.height, height);
+		int size = Math.max(y1-y0, 0);
+		int[] row = new int[size], xStart = new int[size], xEnd = new int[size];
+		int n = 0;
+		for (int y = y0; y < y1; y++) {
+			boolean in = false;
+			for (int x = x0; x <= x1; x++) {
+				boolean inside = x < x1 && (mask == null || mask.get(x-b.x, y-b.y) != 0);
+				if (inside && !in) {
+					if (n == row.length) {
+						row = grow(row);
+						xStart = grow(xStart);
+						xEnd = grow(xEnd);
+					}
+					row[n] = y;
+					xStart[n] = x;
+				} else if (!inside && in) {
+					xEnd[n++] = x;
+				}
+				in = inside;
+			}
+		}
+		return new GCCSpans(row, xStart, xEnd, n);
+	}
+
+	private static int[] grow(int[] arr) {
+		int[] res = new int[Math.max(2*arr.length, 16)];
+		System.arraycopy(arr, 0, res, 0, arr.length);
+		return res;
+	}
+
+	/** Composite Roi of these spans, holes included. */
+	public Roi toRoi() {
+		if (n == 0) return null;
+		int bw = xMax-xMin+1;
+		ByteProcessor bp = new ByteProcessor(bw, yMax-yMin+1);
+		byte[] pixels = (byte[])bp.getPixels();
+		for (int k = 0; k < n; k++) {
+			int offset = (row[k]-yMin)*bw-xMin;
+			for (int x = xStart[k]; x < xEnd[k]; x++) {
+				pixels[offset+x] = (byte)255;
+			}
+		}
+		bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		Roi roi = new ThresholdToSelection().convert(bp);
+		roi.setLocation(xMin, yMin);
+		return roi;
+	}
+
+	public int getSpanCount() {
+		return n;
+	}
+
+	/** Area in pixels. */
+	public long getArea() {
+		return area;
+	}
+
+	/** Centroid in pixels, pixel centers being at +0.5 like ImageJ measurements. */
+	public double getXCentroid() {
+		return xSum/area+0.5;
+	}
+
+	public double getYCentroid() {
+		return ySum/area+0.5;
+	}
+
+	/** Bounding box, max values are inclusive. */
+	public int getXMin() {
+		return xMin;
+	}
+
+	public int getYMin() {
+		return yMin;
+	}
+
+	public int getXMax() {
+		return xMax;
+	}
+
+	public int getYMax() {
+		return yMax;
+	}
+
+	public boolean contains(int x, int y) {
+		if (y < yMin || y > yMax || x < xMin || x > xMax) return false;
+		int lo = 0, hi = n; // first span of row y
+		while (lo < hi) {
+			int mid = (lo+hi) >>> 1;
+			if (row[mid] < y) lo = mid+1; else hi = mid;
+		}
+		for (int k = lo; k < n && row[k] == y && xStart[k] <= x; k++) {
+			if (x < xEnd[k]) return true;
+		}
+		return false;
+	}
+
+	/** Number of pixels in both objects. */
+	public long intersectionArea(GCCSpans other) {
+		if (other.xMin > xMax || other.xMax < xMin || other.yMin > yMax || other.yMax < yMin) return 0;
+		long res = 0;
+		int i = 0, j = 0;
+		while (i < n && j < other.n) {
+			if (row[i] < other.row[j]) {
+				i++;
+			} else if (row[i] > other.row[j]) {
+				j++;
+			} else {
+				int s = Math.max(xStart[i], other.xStart[j]);
+				int e = Math.min(xEnd[i], other.xEnd[j]);
+				if (e > s) res += e-s;
+				if (xEnd[i] < other.xEnd[j]) i++; else j++;
+			}
+		}
+		return res;
+	}
+
+	/** Pixels in at least one of the objects, touching spans are joined. */
+	public GCCSpans union(GCCSpans other) {
+		int size = n+other.n;
+		int[] r = new int[size], s = new int[size], e = new int[size];
+		int m = 0;
+		int i = 0, j = 0;
+		while (i < n || j < other.n) {
+			int cr, cs, ce;
+			if (j >= other.n || (i < n && (row[i] < other.row[j] || (row[i] == other.row[j] && xStart[i] <= other.xStart[j])))) {
+				cr = row[i]; cs = xStart[i]; ce = xEnd[i]; i++;
+			} else {
+				cr = other.row[j]; cs = other.xStart[j]; ce = other.xEnd[j]; j++;
+			}
+			if (m > 0 && r[m-1] == cr && cs <= e[m-1]) {
+				if (ce > e[m-1]) e[m-1] = ce;
+			} else {
+				r[m] = cr;
+				s[m] = cs;
+				e[m] = ce;
+				m++;
+			}
+		}
+		return new GCCSpans(r, s, e, m);
+	}
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Counts the cells of a z-stack in 3D: cells of consecutive slices closer than the minimum distance,
+ * the z step being converted to pixels with the calibration, are the same object counted once.
+ * Slices are added in order, only the objects seen on the slices still within the distance of the
+ * current one are kept, indexed by a grid of distance sized squares, so that memory doesn't grow with the
+ * number of slices. An object leaving this window is counted in the regions containing the centroid
+ * of its largest cell, the one kept by areCellDuplicates within a plane.
+ */
+class GCCStackCounter {
+	private final GCCSpans[] regions;
+	private final double distance, zStep;
+	private final int[] counts;
+	private List<Track> window = new ArrayList<Track>(); // objects that cells of the next slice may continue
+	private int total = 0;
+
+	/** Object seen on consecutive slices. */
+	private static class Track {
+		double x, y; // cell of the last slice it was seen on
+		int z;
+		double xBest, yBest, areaBest; // largest cell
+		int count;
+	}
+
+	private static class Match {
+		final int cell;
+		final Track track;
+		final double d2;
+
+		Match(int cell, Track track, double d2) {
+			this.cell = cell;
+			this.track = track;
+			this.d2 = d2;
+		}
+	}
+
+	/**
+	 * Counter for the regions given, distance in pixels, zStep the distance between slices in pixels
+	 * (pixelDepth/pixelWidth). Cells are never merged if distance is zero.
+	 */
+	GCCStackCounter(GCCSpans[] regions, double distance, double zStep) {
+		this.regions = regions;
+		this.distance = distance;
+		this.zStep = zStep;
+		counts = new int[regions.length];
+	}
+
+	/**
+	 * Adds the cells of slice z, slices being added in increasing order. Cells with a count of zero,
+	 * duplicates within the slice or removed by channel correction, are ignored.
+	 */
+	public void addSlice(int z, double[] x, double[] y, double[] area, int[] count) {
+		List<Track> kept = new ArrayList<Track>();
+		for (Track t : window) {
+			if (distance > 0 && (z-t.z)*zStep <= distance) {
+				kept.add(t);
+			} else {
+				retire(t);
+			}
+		}
+		window = kept;
+		// pairs of a cell and an object closer than the distance, found in the 3x3 squares around the cell
+		HashMap<Long, List<Track>> grid = new HashMap<Long, List<Track>>();
+		for (Track t : window) {
+			long key = square(t.x, t.y);
+			List<Track> list = grid.get(key);
+			if (list == null) {
+				list = new ArrayList<Track>();
+				grid.put(key, list);
+			}
+			list.add(t);
+		}
+		List<Match> matches = new ArrayList<Match>();
+		double d2Max = distance*distance;
+		for (int i = 0; i < x.length && !grid.isEmpty(); i++) {
+			if (count[i] == 0) continue;
+			long sx = (long)Math.floor(x[i]/distance), sy = (long)Math.floor(y[i]/distance);
+			for (long dy = -1; dy <= 1; dy++) {
+				for (long dx = -1; dx <= 1; dx++) {
+					List<Track> list = grid.get((sx+dx) << 32 ^ (sy+dy) & 0xffffffffL);
+					if (list == null) continue;
+					for (Track t : list) {
+						double dz = (z-t.z)*zStep;
+						double d2 = (x[i]-t.x)*(x[i]-t.x)+(y[i]-t.y)*(y[i]-t.y)+dz*dz;
+						if (d2 <= d2Max) matches.add(new Match(i, t, d2));
+					}
+				}
+			}
+		}
+		// closest pairs first, an object continues with one cell per slice
+		Collections.sort(matches, new Comparator<Match>() {
+			public int compare(Match a, Match b) {
+				return Double.compare(a.d2, b.d2);
+			}
+		});
+		boolean[] matched = new boolean[x.length];
+		for (Match m : matches) {
+			if (matched[m.cell] || m.track.z == z) continue;
+			matched[m.cell] = true;
+			update(m.track, z, x[m.cell], y[m.cell], area[m.cell], count[m.cell]);
+		}
+		for (int i = 0; i < x.length; i++) {
+			if (count[i] == 0 || matched[i]) continue;
+			Track t = new Track();
+			t.areaBest = -1;
+			update(t, z, x[i], y[i], area[i], count[i]);
+			window.add(t);
+		}
+	}
+
+	/** Counts the objects still in the window, returns the number of cells in each region. */
+	public int[] finish() {
+		for (Track t : window) {
+			retire(t);
+		}
+		window = new ArrayList<Track>();
+		return counts.clone();
+	}
+
+	/** Cells counted in the stack, regions or not. */
+	public int getTotal() {
+		return total;
+	}
+
+	private static void update(Track t, int z, double x, double y, double area, int count) {
+		t.x = x;
+		t.y = y;
+		t.z = z;
+		if (area > t.areaBest) {
+			t.xBest = x;
+			t.yBest = y;
+			t.areaBest = area;
+		}
+		t.count = Math.max(t.count, count);
+	}
+
+	private void retire(Track t) {
+		total += t.count;
+		for (int r = 0; r < regions.length; r++) {
+			if (regions[r].contains((int)t.xBest, (int)t.yBest)) {
+				counts[r] += t.count;
+			}
+		}
+	}
+
+	private long square(double x, double y) {
+		return (long)Math.floor(x/distance) << 32 ^ (long)Math.floor(y/distance) & 0xffffffffL;
+	}
+}
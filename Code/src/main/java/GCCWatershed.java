@@ -0,0 +1,298 @@
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+import java.util.Arrays;
+
+/**
+ * Splits touching objects of a binary mask like ImageJ "Watershed":
+ * exact Euclidean distance map, its maxima as markers, then flooding of the objects from the markers.
+ * The distance map uses the Meijster/Felzenszwalb two pass algorithm, linear in the number of pixels,
+ * columns then rows being shared between threads.
+ * The flooding uses a binary heap on primitive arrays so millions of pixels do not create objects.
+ */
+class GCCWatershed {
+	private static final float INF = Float.POSITIVE_INFINITY;
+	private static final float TOLERANCE = 0.5f; // maxima less prominent than this (px) are not markers, as in ImageJ
+
+	private GCCWatershed() {}
+
+	/** New mask with touching objects separated by 1 pixel wide lines, as 8-connected objects. */
+	public static GCCBitMask split(GCCBitMask mask) {
+		int width = mask.getWidth(), height = mask.getHeight();
+		float[] dist = distanceMap(mask);
+		int[] labels = GCCBufferPool.getInts(width*height, true);
+		findMarkers(dist, labels, width, height);
+		flood(dist, labels, width, height);
+		GCCBitMask res = new GCCBitMask(width, height);
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				int l = labels[i];
+				if (l <= 0) continue;
+				// of two touching pixels of different objects, the first in raster order is removed
+				if (x+1 < width && differs(labels[i+1], l)
+						|| y+1 < height && (differs(labels[i+width], l)
+						|| x > 0 && differs(labels[i+width-1], l)
+						|| x+1 < width && differs(labels[i+width+1], l))) {
+					continue;
+				}
+				res.set(x, y);
+			}
+		}
+		GCCBufferPool.release(dist);
+		GCCBufferPool.release(labels);
+		return res;
+	}
+
+	private static boolean differs(int other, int l) {
+		return other > 0 && other != l;
+	}
+
+	/**
+	 * Distance (px) of each object pixel to the nearest background pixel, 0 for background, pixels outside the image are not background.
+	 * The array is taken from GCCBufferPool.
+	 */
+	public static float[] distanceMap(final GCCBitMask mask) {
+		final int width = mask.getWidth(), height = mask.getHeight();
+		final float[] dist = GCCBufferPool.getFloats(width*height, false); // every pixel is written by the first pass
+		// first pass: distance to the nearest background pixel of the same column
+		Thread[] threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(Prefs.getThreads(), width)));
+		final int nColThreads = threads.length;
+		for (int t = 0; t < nColThreads; t++) {
+			final int x0 = width*t/nColThreads, x1 = width*(t+1)/nColThreads;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int x = x0; x < x1; x++) {
+						float g = INF;
+						for (int y = 0, i = x; y < height; y++, i += width) {
+							g = mask.get(x, y) ? g+1 : 0;
+							dist[i] = g;
+						}
+						g = INF;
+						for (int y = height-1, i = x+(height-1)*width; y >= 0; y--, i -= width) {
+							g = mask.get(x, y) ? g+1 : 0;
+							if (g < dist[i]) dist[i] = g;
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		// second pass: lower envelope of the parabolas of each row
+		threads = ThreadUtil.createThreadArray(Math.max(1, Math.min(Prefs.getThreads(), height)));
+		final int nRowThreads = threads.length;
+		for (int t = 0; t < nRowThreads; t++) {
+			final int y0 = height*t/nRowThreads, y1 = height*(t+1)/nRowThreads;
+			threads[t] = new Thread() {
+				public void run() {
+					double[] f = new double[width], z = new double[width+1];
+					int[] v = new int[width];
+					for (int y = y0; y < y1; y++) {
+						int offset = y*width;
+						for (int x = 0; x < width; x++) {
+							double g = dist[offset+x];
+							f[x] = g*g;
+						}
+						int k = -1;
+						for (int q = 0; q < width; q++) {
+							if (f[q] == INF) continue;
+							if (k < 0) {
+								k = 0;
+								v[0] = q;
+								z[0] = Double.NEGATIVE_INFINITY;
+								z[1] = INF;
+								continue;
+							}
+							double s = ((f[q]+(double)q*q)-(f[v[k]]+(double)v[k]*v[k]))/(2.0*(q-v[k]));
+							while (s <= z[k]) {
+								k--;
+								s = ((f[q]+(double)q*q)-(f[v[k]]+(double)v[k]*v[k]))/(2.0*(q-v[k]));
+							}
+							k++;
+							v[k] = q;
+							z[k] = s;
+							z[k+1] = INF;
+						}
+						if (k < 0) continue; // no background in the row nor in its columns
+						k = 0;
+						for (int q = 0; q < width; q++) {
+							while (z[k+1] < q) k++;
+							double d = q-v[k];
+							dist[offset+q] = (float)Math.sqrt(d*d+f[v[k]]);
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		return dist;
+	}
+
+	/**
+	 * Labels 1..n the maxima of dist that are higher than their surroundings by TOLERANCE,
+	 * each with the pixels within TOLERANCE of its top, highest maxima first. Returns n.
+	 */
+	private static int findMarkers(float[] dist, int[] labels, int width, int height) {
+		int nCandidates = 0;
+		long[] candidates = new long[1024];
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				float d = dist[i];
+				if (d == 0 || !isLocalMax(dist, d, x, y, width, height)) continue;
+				if (nCandidates == candidates.length) {
+					long[] newCandidates = new long[2*candidates.length];
+					System.arraycopy(candidates, 0, newCandidates, 0, nCandidates);
+					candidates = newCandidates;
+				}
+				// positive floats keep their order as int bits
+				candidates[nCandidates++] = (long)Float.floatToIntBits(d) << 32 | i;
+			}
+		}
+		Arrays.sort(candidates, 0, nCandidates);
+		int nMarkers = 0;
+		int[] stack = new int[256];
+		int[] visited = new int[256];
+		for (int c = nCandidates-1; c >= 0; c--) {
+			int start = (int)candidates[c];
+			if (labels[start] != 0) continue;
+			float top = dist[start], floor = top-TOLERANCE;
+			boolean isMarker = true;
+			int visitedMark = -1-c; // set to the marker label if accepted
+			int nStack = 0, nVisited = 0;
+			stack[nStack++] = start;
+			labels[start] = visitedMark;
+			while (nStack > 0) {
+				int i = stack[--nStack];
+				if (nVisited == visited.length) visited = grow(visited);
+				visited[nVisited++] = i;
+				int x = i%width, y = i/width;
+				for (int dy = -1; dy <= 1; dy++) {
+					int yy = y+dy;
+					if (yy < 0 || yy >= height) continue;
+					for (int dx = -1; dx <= 1; dx++) {
+						int xx = x+dx;
+						if (xx < 0 || xx >= width || (dx == 0 && dy == 0)) continue;
+						int j = yy*width+xx;
+						float d = dist[j];
+						if (d <= floor) continue;
+						if (d > top || (labels[j] != 0 && labels[j] != visitedMark)) {
+							isMarker = false; // slope of a higher maximum, or joins a marker
+						} else if (labels[j] == 0) {
+							labels[j] = visitedMark;
+							if (nStack == stack.length) stack = grow(stack);
+							stack[nStack++] = j;
+						}
+					}
+				}
+			}
+			if (isMarker) {
+				nMarkers++;
+				for (int k = 0; k < nVisited; k++) {
+					labels[visited[k]] = nMarkers;
+				}
+			}
+		}
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i] < 0) labels[i] = 0;
+		}
+		return nMarkers;
+	}
+
+	private static boolean isLocalMax(float[] dist, float d, int x, int y, int width, int height) {
+		for (int yy = Math.max(y-1, 0); yy <= Math.min(y+1, height-1); yy++) {
+			for (int xx = Math.max(x-1, 0); xx <= Math.min(x+1, width-1); xx++) {
+				if (dist[yy*width+xx] > d) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Gives each unlabeled object pixel the label of the first marker reaching it, flooding from the highest distances down. */
+	private static void flood(float[] dist, int[] labels, int width, int height) {
+		Heap heap = new Heap();
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				if (labels[i] > 0) {
+					heap.push(i, dist[i]);
+				}
+			}
+		}
+		while (heap.size > 0) {
+			int i = heap.pop();
+			int l = labels[i];
+			int x = i%width, y = i/width;
+			for (int dy = -1; dy <= 1; dy++) {
+				int yy = y+dy;
+				if (yy < 0 || yy >= height) continue;
+				for (int dx = -1; dx <= 1; dx++) {
+					int xx = x+dx;
+					if (xx < 0 || xx >= width) continue;
+					int j = yy*width+xx;
+					if (labels[j] == 0 && dist[j] > 0) {
+						labels[j] = l;
+						heap.push(j, dist[j]);
+					}
+				}
+			}
+		}
+	}
+
+	private static int[] grow(int[] arr) {
+		int[] res = new int[2*arr.length];
+		System.arraycopy(arr, 0, res, 0, arr.length);
+		return res;
+	}
+
+	/**
+	 * Max heap of pixel indices by distance. Keys hold the distance bits then a push counter,
+	 * so pixels of equal distance come out in the order they were pushed.
+	 */
+	private static class Heap {
+		private long[] keys = new long[1024];
+		private int[] indices = new int[1024];
+		private int size = 0;
+		private long counter = 0;
+
+		void push(int index, float d) {
+			if (size == keys.length) {
+				long[] newKeys = new long[2*size];
+				System.arraycopy(keys, 0, newKeys, 0, size);
+				keys = newKeys;
+				indices = grow(indices);
+			}
+			// positive floats keep their order as int bits, the counter is inverted so that first pushed is larger
+			long key = (long)Float.floatToIntBits(d) << 32 | (0xFFFFFFFFL-(counter++ & 0xFFFFFFFFL));
+			int k = size++;
+			while (k > 0) {
+				int parent = (k-1) >> 1;
+				if (keys[parent] >= key) break;
+				keys[k] = keys[parent];
+				indices[k] = indices[parent];
+				k = parent;
+			}
+			keys[k] = key;
+			indices[k] = index;
+		}
+
+		int pop() {
+			int res = indices[0];
+			size--;
+			long key = keys[size];
+			int index = indices[size];
+			int k = 0;
+			while (true) {
+				int child = 2*k+1;
+				if (child >= size) break;
+				if (child+1 < size && keys[child+1] > keys[child]) child++;
+				if (keys[child] <= key) break;
+				keys[k] = keys[child];
+				indices[k] = indices[child];
+				k = child;
+			}
+			if (size > 0) {
+				keys[k] = key;
+				indices[k] = index;
+			}
+			return res;
+		}
+	}
+}
@@ -3,10 +3,11 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.ImageWindow;
-import ij.gui.Roi;
+import ij.gui.Overlay;
 import ij.io.FileInfo;
 import ij.io.OpenDialog;
 import ij.io.Opener;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 
 import java.awt.Button;
@@ -18,6 +19,7 @@ import java.awt.Container;
 import java.awt.Cursor;
 import java.awt.Desktop;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Frame;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
@@ -40,15 +42,33 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.Box;
 import javax.swing.JLabel;
+import javax.swing.Timer;
 import javax.swing.ToolTipManager;
 
 import ij.plugin.PlugIn;
+import ij.plugin.RoiScaler;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import ij.plugin.frame.RoiManager;
-import ij.process.ImageStatistics;
-import ij.plugin.ImageCalculator;
+import ij.util.ThreadUtil;
 
 /**
  * General Cell Counter
@@ -79,6 +99,8 @@ public class General_Cell_Counter implements PlugIn {
 
 class GCCProcess implements ActionListener, ItemListener, TextListener, WindowListener, MouseListener {
 	private static GCCProcess instance = null;
+	static final String VERSION = "1.0.5";
+	static final String RESULTS_FILE_NAME = "GeneralCellCount.csv";
 	private Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
 	private double screenWidth = screenSize.getWidth();
 	private double screenHeight = screenSize.getHeight();
@@ -92,20 +114,47 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private double[] yCell = new double[0];
 	private double[] areaCell = new double[0];
 	private int[] nucleusInCell = new int[0];
-	private String[] nucleusInCellPos = new String[0];
+	private int[][] nucleusInCellPos = new int[0][]; // x and y of each nucleus inside the cell
 	private boolean[] dupCell = new boolean[0];
+	private int[] countCell = new int[0]; // cells counted for each object: 0 for duplicates and cells removed by channel correction
+	private Roi[] cellRois = new Roi[0]; // outlines drawn on res
+	private GCCLabeling cells;
 	private Calibration cal;
-	public static final String autoThCmd = getCommand("Auto_Threshold");
+	private volatile int previewGeneration = 0; // stale background refinements are dropped
+	private final ExecutorService refiner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "GCC preview refinement");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private Future<?> pendingRefinement = null; // last refinement asked for, replaced by the next one
+	private final ThreadLocal<Integer> refinedGeneration = new ThreadLocal<Integer>(); // preview refined by the current thread, null elsewhere
+	private static final int MIN_PREVIEW_SIZE = 256; // pyramid levels stay above this size
+	private static final int TILE_SIZE = 256; // processed areas are aligned on this grid so that small moves reuse them
+	private GCCMaskCache maskCache = new GCCMaskCache(4);
+	private Map<String, GCCPipeline.Levels> planeLevels = new HashMap<String, GCCPipeline.Levels>(); // levels of the whole plane, by mask key
+	private final GCCPipeline pipeline = new GCCPipeline() {
+		protected void checkCanceled() {
+			checkRefinement(); // stops refinements of replaced previews
+		}
+	};
+	private Rectangle previewArea = null; // area shown by the preview, null for the whole image
+	private int previewScale = 1; // pyramid level shown by the preview
+	private Timer viewportTimer = new Timer(500, this); // follows panning and zooming of the preview
+	private Map<String, GCCMaskCache.Entry> channelMasks = null; // thresholds computed by saveAllChannels, by mask key
+	private Map<String, GCCSpans[]> channelCells = null; // cells saved by saveAllChannels, by path of their zip file
+	private CountedCells lastCells = null; // cells of the last results saved, counted again when only the regions change
+	private GCCMaskCache.Entry lastEntry = null; // mask of the cells shown
+	private Thread folderThread = null; // saves the results of a folder, see saveFolder
+	private volatile boolean folderCanceled = false;
+	private Map<Integer, StackCount> stackCounts = null; // cells merged across the slices saved by saveStack, by channel
 	
-	private final String[] autoThresholdMethods = {"Default", "Huang", "Intermodes", "IsoData", "IJ_IsoData", "Li", "MaxEntropy", "Mean", "MinError",
-													"Minimum", "Moments", "Otsu", "Percentile", "RenyiEntropy", "Shanbhag", "Triangle", "Yen"};
-	private final String[] autoLocalThresholdMethods = {"Bernsen", "Contrast", "Mean", "Median", "MidGrey", "Niblack", "Otsu", "Phansalkar", "Sauvola"};
-
 	private final String[] thresholdMethodList = {"Auto Threshold", "Auto Local Threshold", "Chastagnier Threshold"};
 	private final String[] thresholdMethodLink = {"https://imagej.net/plugins/auto-threshold", "https://imagej.net/plugins/auto-local-threshold",
 			"https://www.frontiersin.org/articles/10.3389/fncom.2017.00118/full"};
 	// when adding new threshold method to the list, add case in itemStateChanged method to save/load parameter values
-	// and add the method in the threshold method
+	// and add the method in GCCPipeline.threshold
 	
 	private int methodSelected = (int)ij.Prefs.get("GCC.methodSelected", 0);
 	private int autoThMethodSelected = (int)ij.Prefs.get("GCC.autoThMethodSelected", 0);
@@ -120,6 +169,8 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private Button showRegions = new Button("Display regions");
 	private Button saveRegions = new Button("Save current regions");
 	private Button saveResults = new Button("Save results");
+	private Button saveAllChannels = new Button("Save results of all channels");
+	private Button saveFolder = new Button("Save results of folder");
 	private JLabel methodLabel = new JLabel("                   Threshold Method ", JLabel.RIGHT);
 	private Label autoThMethodLabel = new Label("Auto Threshold Method ", Label.RIGHT);
 	private Label autoLocalThMethodLabel = new Label("Auto Local Threshold Method ", Label.RIGHT);
@@ -127,6 +178,7 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private Choice autoThMethod = new Choice();
 	private Choice autoLocalThMethod = new Choice();
 	private String methodParmStr = "";
+	private GCCResultCache resultCache = null; // of the folder of the current image
 	
 	// Cell detection fields
 	private final Label cellSizeLabel = new Label("Cell area range ", Label.RIGHT);
@@ -135,8 +187,15 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private TextField cellCircularityTxt = new TextField(ij.Prefs.get("GCC.cellCircularity", "0.00-1.00"));
 	private final Label minDistanceLabel = new Label("Minimal distance ", Label.RIGHT);
 	private TextField minDistanceTxt = new TextField(ij.Prefs.get("GCC.minDistance", "10"));
+	private Checkbox splitCells = new Checkbox("Split touching cells (watershed)", ij.Prefs.get("GCC.splitCells", false));
+	private Checkbox mergeSlices = new Checkbox("Merge cells of adjacent slices (3D count)", ij.Prefs.get("GCC.mergeSlices", false));
 
+	// Background removal, offered next to the Gaussian sigma of each method
+	private final String[] backgroundMethods = {"Gaussian high pass", "White top-hat", "Black top-hat"};
+	
 	// Auto Th fields
+	private final Label backgroundAutoLabel = new Label("Background removal ", Label.RIGHT);
+	private Choice backgroundAuto = new Choice();
 	private final Label gaussianSigmaAutoLabel = new Label("Gaussian high pass \u03C3 ", Label.RIGHT);
 	private TextField gaussianSigmaAutoTxt = new TextField(String.valueOf(ij.Prefs.get("GCC.gaussianSigmaAuto", 10)));
 	private final Label medianRadiusAutoLabel = new Label("Median filter radius (px) ", Label.RIGHT);
@@ -145,6 +204,8 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private Checkbox ignoreWhite = new Checkbox("ignore white", ij.Prefs.get("GCC.ignoreWhite", false));
 	
 	// Auto Local Th fields
+	private final Label backgroundAutoLocLabel = new Label("Background removal ", Label.RIGHT);
+	private Choice backgroundAutoLoc = new Choice();
 	private final Label gaussianSigmaAutoLocLabel = new Label("Gaussian high pass \u03C3 ", Label.RIGHT);
 	private TextField gaussianSigmaAutoLocTxt = new TextField(String.valueOf(ij.Prefs.get("GCC.gaussianSigmaAutoLoc", 10)));
 	private final Label medianRadiusAutoLocLabel = new Label("Median filter radius (px) ", Label.RIGHT);
@@ -178,6 +239,8 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private TextField localSauvolaParm2Txt = new TextField(String.valueOf(ij.Prefs.get("GCC.localSauvolaParm2", 0))); // Sauvola parm 2/2
 	
 	// Chastagnier Threshold fields
+	private final Label backgroundChastLabel = new Label("Background removal ", Label.RIGHT);
+	private Choice backgroundChast = new Choice();
 	private final Label gaussianSigmaChast1Label = new Label("Gaussian high pass 1 \u03C3 ", Label.RIGHT);
 	private TextField gaussianSigmaChast1Txt = new TextField(String.valueOf(ij.Prefs.get("GCC.gaussianSigmaChast1", 5)));
 	private final Label gaussianSigmaChast2Label = new Label("Gaussian high pass 2 \u03C3 ", Label.RIGHT);
@@ -188,13 +251,16 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	private final Label channelCorrectionLabel = new Label("Other channel number ", Label.RIGHT);
 	private TextField channelCorrectionTxt = new TextField(String.valueOf(ij.Prefs.get("GCC.channelCorrection", "1")));
 	private boolean doChanCorr = false;
+	private final Label cellTableLabel = new Label("Per cell table ", Label.RIGHT);
+	private Choice cellTable = new Choice();
+	private final String[] cellTableFormats = {"None", "csv", "Binary (columnar)"};
+	private int cellTableSelected = (int)ij.Prefs.get("GCC.cellTableSelected", 0);
+	private Checkbox measureChannels = new Checkbox("Measure intensities of all channels", ij.Prefs.get("GCC.measureChannels", false));
 	private Checkbox whiteBackground = new Checkbox("White background", ij.Prefs.get("GCC.whiteBackground", false));
 	private Checkbox preview = new Checkbox("Preview", false);
 	private TextField logTxt = new TextField("");
 	
 	private OpenDialog od;
-	private ImageCalculator ic = new ImageCalculator();
-	private ImageStatistics istat;
 	
 	protected GCCProcess() {}
 	
@@ -217,16 +283,33 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 				methodLabel.addMouseListener(this);
 				methodLabel.setForeground(Color.BLUE.darker());
 				methodLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
-				for (int i = 0; i < autoThresholdMethods.length; i++) {
-					autoThMethod.add(autoThresholdMethods[i]);
+				for (int i = 0; i < GCCPipeline.AUTO_THRESHOLD_METHODS.length; i++) {
+					autoThMethod.add(GCCPipeline.AUTO_THRESHOLD_METHODS[i]);
 				}
 				autoThMethod.select(autoThMethodSelected);
 				autoThMethod.addItemListener(this);
-				for (int i = 0; i < autoLocalThresholdMethods.length; i++) {
-					autoLocalThMethod.add(autoLocalThresholdMethods[i]);
+				for (int i = 0; i < GCCPipeline.AUTO_LOCAL_THRESHOLD_METHODS.length; i++) {
+					autoLocalThMethod.add(GCCPipeline.AUTO_LOCAL_THRESHOLD_METHODS[i]);
 				}
 				autoLocalThMethod.select(autoLocalThMethodSelected);
 				autoLocalThMethod.addItemListener(this);
+				for (int i = 0; i < cellTableFormats.length; i++) {
+					cellTable.add(cellTableFormats[i]);
+				}
+				cellTable.select(cellTableSelected);
+				cellTable.addItemListener(this);
+				for (int i = 0; i < backgroundMethods.length; i++) {
+					backgroundAuto.add(backgroundMethods[i]);
+					backgroundAutoLoc.add(backgroundMethods[i]);
+					backgroundChast.add(backgroundMethods[i]);
+				}
+				backgroundAuto.select((int)ij.Prefs.get("GCC.backgroundAuto", 0));
+				backgroundAuto.addItemListener(this);
+				backgroundAutoLoc.select((int)ij.Prefs.get("GCC.backgroundAutoLoc", 0));
+				backgroundAutoLoc.addItemListener(this);
+				backgroundChast.select((int)ij.Prefs.get("GCC.backgroundChast", 0));
+				backgroundChast.addItemListener(this);
+				updateBackgroundLabels();
 				newImage.addActionListener(this);
 				selectImage.addActionListener(this);
 				showRegions.addActionListener(this);
@@ -274,6 +357,7 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 				cellCircularityTxt.addTextListener(this);
 				minDistanceTxt.addActionListener(this);
 				minDistanceTxt.addTextListener(this);
+				splitCells.addItemListener(this);
 				
 				channelCorrection.addItemListener(this);
 				channelCorrectionTxt.addActionListener(this);
@@ -282,9 +366,11 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 				whiteBackground.addItemListener(this);
 				preview.addItemListener(this);
 				saveResults.addActionListener(this);
+				saveAllChannels.addActionListener(this);
+				saveFolder.addActionListener(this);
 			}
 			
-			frame = new Frame("General Cell Counter v1.0.5");
+			frame = new Frame("General Cell Counter v"+VERSION);
 			frame.setLayout(new GridBagLayout());
 			
 			addThingContainer(frame, Box.createVerticalStrut(6),	0, 0,	1, 101,	0, 0,	6, 0);
@@ -307,14 +393,20 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 			addThingContainer(frame, cellCircularityTxt,			2, 87,	1, 1,	1, 1,	0, 0);
 			addThingContainer(frame, minDistanceLabel,				1, 88,	1, 1,	1, 1,	0, 0);
 			addThingContainer(frame, minDistanceTxt,				2, 88,	1, 1,	1, 1,	0, 0);
+			addThingContainer(frame, splitCells,					2, 89,	2, 1,	1, 1,	0, 0);
+			addThingContainer(frame, mergeSlices,					2, 90,	2, 1,	1, 1,	0, 0);
 			
 			//addThingContainer(frame, channelCorrection,				2, 92,	2, 1,	1, 1,	0, 0);
 			// updated at image opening or selection, see method toggleChannelAdjustment()
 			// Label and TextField on line 93
 			
+			addThingContainer(frame, cellTableLabel,				1, 96,	1, 1,	1, 1,	0, 0);
+			addThingContainer(frame, cellTable,						2, 96,	1, 1,	1, 1,	0, 0);
+			addThingContainer(frame, measureChannels,				2, 95,	2, 1,	1, 1,	0, 0);
 			addThingContainer(frame, whiteBackground,				2, 97,	2, 1,	1, 1,	0, 0);
 			addThingContainer(frame, preview,						2, 98,	2, 1,	1, 1,	0, 0);
-			addThingContainer(frame, saveResults,					1, 99,	2, 1,	1, 1,	0, 0);
+			addThingContainer(frame, saveResults,					1, 99,	1, 1,	1, 1,	0, 0);
+			addThingContainer(frame, saveFolder,					2, 99,	1, 1,	1, 1,	0, 0);
 			addThingContainer(frame, logTxt,						1, 100,	2, 1,	1, 1,	0, 0);
 			addThingContainer(frame, Box.createHorizontalStrut(6),	1, 101,	2, 1,	0, 0,	0, 6);
 			
@@ -333,6 +425,8 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		case 0:
 			updateElementFrame(autoThMethodLabel,				1, 10,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(autoThMethod,					2, 10,	1, 1,	1, 1,	0, 0, add);
+			updateElementFrame(backgroundAutoLabel,				1, 12,	1, 1,	1, 1,	0, 0, add);
+			updateElementFrame(backgroundAuto,					2, 12,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaAutoLabel,			1, 13,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaAutoTxt,			2, 13,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(medianRadiusAutoLabel,			1, 14,	1, 1,	1, 1,	0, 0, add);
@@ -343,6 +437,8 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		case 1:
 			updateElementFrame(autoLocalThMethodLabel,			1, 10,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(autoLocalThMethod,				2, 10,	1, 1,	1, 1,	0, 0, add);
+			updateElementFrame(backgroundAutoLocLabel,			1, 12,	1, 1,	1, 1,	0, 0, add);
+			updateElementFrame(backgroundAutoLoc,				2, 12,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaAutoLocLabel,		1, 13,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaAutoLocTxt,			2, 13,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(medianRadiusAutoLocLabel,		1, 14,	1, 1,	1, 1,	0, 0, add);
@@ -387,6 +483,8 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 			}
 			break;
 		case 2:
+			updateElementFrame(backgroundChastLabel,			1, 12,	1, 1,	1, 1,	0, 0, add);
+			updateElementFrame(backgroundChast,					2, 12,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaChast1Label,		1, 13,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaChast1Txt,			2, 13,	1, 1,	1, 1,	0, 0, add);
 			updateElementFrame(gaussianSigmaChast2Label,		1, 14,	1, 1,	1, 1,	0, 0, add);
@@ -437,31 +535,10 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 			od = new OpenDialog("Select image to open.");
 			String newPath = od.getPath();
 			if (newPath != null) {
-				String fileFormat = Opener.getFileFormat(newPath);
-				boolean openClassic = !fileFormat.matches("unknown") && !fileFormat.matches("txt");
-				if (openClassic) {
-					ori = IJ.openImage(newPath);
-					ImageWindow.setNextLocation((int)oriPosX, (int)oriPosY);
-				} else {
-					ImageWindow.setNextLocation((int)oriPosX, (int)oriPosY);
-					IJ.run("Bio-Formats Importer", "open=["+newPath+
-							"] color_mode=Default rois_import=[ROI manager] view=Hyperstack stack_order=XYCZT use_virtual_stack");
-					ori = WindowManager.getCurrentImage();
-				}
-				if (ori == null) {
+				if (!openImage(newPath)) {
 					logTxt.setText("Failed to open image.");
 					return;
 				}
-				
-				toggleChannelAdjustment();
-				displayParmsUnits();
-				
-				if (openClassic) {
-					ori.show();
-				}
-				oriWin = ori.getWindow();
-				oriROIsPath = getPathExt(ori, "ROIs", "zip");
-				openImageROIs(true);
 			} else {
 				logTxt.setText("Open image canceled");
 				return;
@@ -504,7 +581,24 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		} else if (b == saveRegions) {
 			saveRegions();
 		} else if (b == saveResults) {
-			saveResults();
+			if (mergeSlices.getState() && ori != null && ori.getNSlices() > 1) {
+				saveStack(ori.getFrame(), null, null);
+			} else {
+				saveResults();
+			}
+		} else if (b == saveAllChannels) {
+			saveAllChannels();
+		} else if (b == saveFolder) {
+			if (folderThread != null) {
+				folderCanceled = true;
+				logTxt.setText("Canceling after the plane being saved...");
+			} else {
+				saveFolder();
+			}
+		} else if (b == viewportTimer) {
+			checkViewport();
+		} else if (b == minDistanceTxt && preview.getState() && redrawDuplicates()) {
+			// only duplicates change
 		} else if (b instanceof TextField) {
 			if (preview.getState()) {
 				process();
@@ -512,11 +606,67 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		}
 	}
 	
+	/** Opens the image at path as ori, with its regions. */
+	private boolean openImage(String newPath) {
+		String fileFormat = Opener.getFileFormat(newPath);
+		boolean openClassic = !fileFormat.matches("unknown") && !fileFormat.matches("txt");
+		if (openClassic) {
+			ori = fileFormat.equals("tif") ? GCCMappedTiff.open(newPath) : null; // stacks are read lazily
+			if (ori == null) {
+				ori = IJ.openImage(newPath);
+			}
+			ImageWindow.setNextLocation((int)oriPosX, (int)oriPosY);
+		} else {
+			ImageWindow.setNextLocation((int)oriPosX, (int)oriPosY);
+			IJ.run("Bio-Formats Importer", "open=["+newPath+
+					"] color_mode=Default rois_import=[ROI manager] view=Hyperstack stack_order=XYCZT use_virtual_stack");
+			ori = WindowManager.getCurrentImage();
+			if (ori != null) {
+				GCCPlaneCache.install(ori); // planes are decoded again at each move otherwise
+			}
+		}
+		if (ori == null) {
+			return false;
+		}
+		
+		toggleChannelAdjustment();
+		displayParmsUnits();
+		
+		if (openClassic) {
+			ori.show();
+		}
+		oriWin = ori.getWindow();
+		oriROIsPath = getPathExt(ori, "ROIs", "zip");
+		openImageROIs(true);
+		return true;
+	}
+	
 	private void toggleChannelAdjustment() {
 		updateElementFrame(channelCorrection,	2, 92,	2, 1,	1, 1,	0, 0, ori.getNChannels() > 1);
+		updateElementFrame(saveAllChannels,		1, 94,	2, 1,	1, 1,	0, 0, ori.getNChannels() > 1);
 		frame.pack();
 	}
 
+	/** Names the size fields after the background removal selected for each method. */
+	private void updateBackgroundLabels() {
+		String unit = cal == null ? "" : "("+cal.getUnit()+") ";
+		gaussianSigmaAutoLabel.setText(getBackgroundSizeName(backgroundAuto.getSelectedIndex(), "")+unit);
+		gaussianSigmaAutoLocLabel.setText(getBackgroundSizeName(backgroundAutoLoc.getSelectedIndex(), "")+unit);
+		gaussianSigmaChast1Label.setText(getBackgroundSizeName(backgroundChast.getSelectedIndex(), " 1")+unit);
+		gaussianSigmaChast2Label.setText(getBackgroundSizeName(backgroundChast.getSelectedIndex(), " 2")+unit);
+	}
+	
+	private String getBackgroundSizeName(int background, String number) {
+		switch(background) {
+		case 1:
+			return "White top-hat"+number+" radius ";
+		case 2:
+			return "Black top-hat"+number+" radius ";
+		default:
+			return "Gaussian high pass"+number+" \u03C3 ";
+		}
+	}
+	
 	private void displayParmsUnits() {
 		cal = ori.getCalibration();
 		if (cal.getUnit().matches(" ") || cal.getUnit().matches("pixel")) {
@@ -525,10 +675,7 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 			cal.setUnit("\u03BCm");
 		}
 		cellSizeLabel.setText("Cell area range ("+cal.getUnit()+"\u00B2) ");
-		gaussianSigmaAutoLabel.setText("Gaussian high pass \u03C3 ("+cal.getUnit()+") ");
-		gaussianSigmaAutoLocLabel.setText("Gaussian high pass \u03C3 ("+cal.getUnit()+") ");
-		gaussianSigmaChast1Label.setText("Gaussian high pass 1 \u03C3 ("+cal.getUnit()+") ");
-		gaussianSigmaChast2Label.setText("Gaussian high pass 2 \u03C3 ("+cal.getUnit()+") ");
+		updateBackgroundLabels();
 		minDistanceLabel.setText("Minimal distance ("+cal.getUnit()+") ");
 		logTxt.setText("Pixel size: "+cal.pixelWidth+"x"+cal.pixelHeight+" "+cal.getUnit()+"\u00B2");
 		
@@ -595,17 +742,18 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		}
 	}
 	
-	private void saveResults() {
-		if (resWin != null && resWin.isVisible()) {
-			res.changes = false;
-			res.close();
+	private boolean saveResults() {
+		if (ori == null || oriWin == null || !oriWin.isVisible()) {
+			logTxt.setText("No image to process");
+			return false;
 		}
-		if (!process()) return;
-		preview.setState(true);
+		doChanCorr = channelCorrection.getState();
 		String suffix = "";
 		String fileNameSC = ori.getOriginalFileInfo().fileName;
+		String fileNameStack = fileNameSC+" 3D"; // rows of the cells merged across slices
 		if (ori.getNChannels() > 1) {
 			fileNameSC = fileNameSC+" c"+ori.getChannel();
+			fileNameStack = fileNameStack+" c"+ori.getChannel();
 			suffix = suffix +"_c"+ori.getChannel();
 		}
 		if (ori.getNSlices() > 1) {
@@ -614,87 +762,678 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		}
 		if (ori.getNFrames() > 1) {
 			fileNameSC = fileNameSC+" f"+ori.getFrame();
+			fileNameStack = fileNameStack+" f"+ori.getFrame();
 			suffix = suffix +"_f"+ori.getFrame();
 		}
 		if (doChanCorr) {
 			fileNameSC = fileNameSC+"_c"+channelCorrectionTxt.getText();
+			fileNameStack = fileNameStack+"_c"+channelCorrectionTxt.getText();
 			suffix = suffix+"_c"+channelCorrectionTxt.getText();
 		}
 		fileNameSC = fileNameSC+";";
-		oriCellsPath = getPathExt(ori, "Cells"+suffix, "zip");
-		int nCells = getRM().getCount();
-		if (nCells > 0) {
-			getRM().runCommand("Save", oriCellsPath);
-		}
-		String flatPath = getPathExt(ori, suffix, "png");
-		ImagePlus flat1 = res.flatten();
-		if (!openImageROIs(true)) {									// open regions selected by user
-			IJ.run(ori, "Select All", "");							// or full image if none saved
-			getRM().addRoi(ori.getRoi());
+		String resultKey = getResultKey(suffix);
+		String[] rows = resultKey != null ? getResultCache().get(fileNameSC, resultKey) : null;
+		if (rows != null && (!new File(getPathExt(ori, suffix, "png")).exists() || !new File(getPathExt(ori, "Cells"+suffix, "zip")).exists()
+				|| cellTableSelected > 0 && !new File(getPathExt(ori, "CellTable"+suffix, cellTableSelected == 2 ? "gcct" : "csv")).exists())) {
+			rows = null; // outputs were removed since
 		}
-		for (int i = 0; i < getRM().getCount(); i++) {
-			getRM().select(i);
-			getRM().runCommand("Set Color", "green");			// set regions selected as green
+		if (stackCounts != null) {
+			rows = null; // cells of the slice are merged with those of the others
 		}
-		getRM().runCommand(flat1, "Show All with Labels");
-		ImagePlus flat2 = flat1.flatten();							// flatten them
-		IJ.save(flat2, flatPath);
-		flat1.close();
-		flat2.close();
-		getRM().reset();
-		if (nCells > 0) {
-			getRM().runCommand("Open", oriCellsPath);
+		boolean computed = rows == null;
+		if (!computed) {
+			logTxt.setText("Image and parameters unchanged, previous results kept.");
+		} else {
+			rows = computeResults(suffix, fileNameSC);
+			if (rows == null) return false;
 		}
-		if (!openImageROIs(false)) {
-			IJ.run(ori, "Select All", "");
-			getRM().addRoi(ori.getRoi());
+		if (stackCounts != null && !addToStack(fileNameStack+";")) return false;
+		
+		// other instances may save results of the same folder, the results file is only changed under lock
+		String folder = ori.getOriginalFileInfo().directory+"GeneralCellCount";
+		GCCLease leases = new GCCLease(folder);
+		if (!leases.lock(RESULTS_FILE_NAME, 2*GCCLease.LOCK_LEASE_TIME)) {
+			logTxt.setText("Results file locked by another instance, results not saved.");
+			return false;
 		}
-		getRM().runCommand(res, "Show All without Labels");
-		int nROIs = getRM().getCount()-nCells;
-		double[] areas = new double[nROIs];
-		int[] nCellsIn = new int[nROIs];
-		for (int iRoi = nCells; iRoi < nCells+nROIs; iRoi++) {
-			getRM().select(iRoi);
-			istat = res.getStatistics(ImageStatistics.AREA);
-			areas[iRoi-nCells] = istat.area;
-			Roi roi = getRM().getRoi(iRoi);
-			int nInside = 0;
-			for (int iCell = 0; iCell < nCells; iCell++) {
-				if (!dupCell[iCell] && roi.contains((int)xCell[iCell], (int)yCell[iCell])) {
-					nInside++;
+		try {
+			if (computed && resultKey != null) {
+				try {
+					getResultCache().put(fileNameSC, resultKey, rows);
+				} catch (IOException ex) {
+					// results are saved anyway, only the next save will compute them again
 				}
 			}
-			nCellsIn[iRoi-nCells] = nInside;
+			if (!mergeResults(folder+File.separator+RESULTS_FILE_NAME, fileNameSC, rows)) {
+				logTxt.setText("Cannot write "+RESULTS_FILE_NAME);
+				return false;
+			}
+		} finally {
+			leases.unlock(RESULTS_FILE_NAME);
 		}
-		
-		String resFile = ori.getOriginalFileInfo().directory+"GeneralCellCount"+File.separator+"GeneralCellCount.csv";
-		String results;
+		if (ori.getNChannels() > 1) { // parameters of the channel, used by saveAllChannels
+			IJ.saveString(getProfile().toString(), getProfilePath(ori.getChannel()));
+		}
+		return true;
+	}
+	
+	/** File of the parameters last used to save results of channel c of the images of the folder of ori. */
+	private String getProfilePath(int c) {
+		return ori.getOriginalFileInfo().directory+"GeneralCellCount"+File.separator+"Profile_c"+c+".txt";
+	}
+	
+	/** Parameters last used to save results of channel c in the folder of ori, null if there are none. */
+	private GCCProfile readProfile(int c) {
+		try {
+			return GCCProfile.parse(new String(Files.readAllBytes(new File(getProfilePath(c)).toPath()), StandardCharsets.UTF_8).trim());
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+	
+	/** Replaces the rows of plane fileNameSC in the results file, rows of the other planes sorted by name around them. */
+	private boolean mergeResults(String resFile, String fileNameSC, String[] rows) {
+		StringBuilder results = new StringBuilder();
 		String[] previousResults = new String[0];
 		File f = new File(resFile);
 		int index = 1;
 		boolean exist = f.exists();
 		if (exist) {
 			previousResults = removeLinesStartingWith(IJ.openAsString(resFile), fileNameSC).split("\n");
-			results = previousResults[0]+ "\n";
+			results.append(previousResults[0]).append("\n");
 			while (index < previousResults.length && previousResults[index].compareToIgnoreCase(fileNameSC) < 0) { 
-				results = results + previousResults[index] + "\n";
+				results.append(previousResults[index]).append("\n");
 				index++;
 			}
 		} else {
-			results = "File name [position];ROI ID;Count;Area(unit2);Area(px2);Size Range;Circularity;MinDistance;Method;;;;;\n";
+			results.append("File name [position];ROI ID;Count;Area(unit2);Area(px2);Size Range;Circularity;MinDistance;Method;;;;;\n");
 		}
-		for (int iRoi = 0; iRoi < nROIs; iRoi++) {
-			results = results + fileNameSC +(iRoi+1)+";"+nCellsIn[iRoi]+
-					";"+areas[iRoi]+";"+(int)(areas[iRoi]/(cal.pixelWidth*cal.pixelHeight))+methodParmStr+"\n";
+		for (int iRow = 0; iRow < rows.length; iRow++) {
+			results.append(rows[iRow]).append("\n");
 		}
 		if (exist) {
 			for (;index < previousResults.length; index++) {
-				results = results + previousResults[index] + "\n";
+				results.append(previousResults[index]).append("\n");
+			}
+		}
+		// written aside then moved, readers never see a partial file
+		File tmp = new File(resFile+".tmp");
+		if (IJ.saveString(results.toString(), tmp.getPath()) != null) return false;
+		try {
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ex2) {
+				return false;
 			}
 		}
+		return true;
+	}
+	
+	/**
+	 * Saves the results of every channel of the current position, each with the parameters last used
+	 * to save results of that channel, or the current ones. Thresholds of all channels are computed
+	 * in parallel, then results are saved channel by channel, channels used by the channel correction
+	 * of another one first. Their cells are passed in memory instead of being read back from their zip file.
+	 */
+	private boolean saveAllChannels() {
+		if (ori == null || oriWin == null || !oriWin.isVisible()) {
+			logTxt.setText("No image to process");
+			return false;
+		}
+		final int nChannels = ori.getNChannels();
+		final int channel = ori.getChannel(), slice = ori.getSlice(), frame = ori.getFrame();
+		GCCProfile current = getProfile();
+		final GCCProfile[] profiles = new GCCProfile[nChannels];
+		String used = ""; // which parameters each channel used, for the log
+		for (int c = 0; c < nChannels; c++) {
+			profiles[c] = readProfile(c+1);
+			used = used+(c > 0 ? ", " : "")+"c"+(c+1)+(profiles[c] != null ? " saved" : " current");
+			if (profiles[c] == null) {
+				profiles[c] = current;
+			}
+		}
+		int[] order = getChannelOrder(profiles);
+		if (order == null) {
+			logTxt.setText("Channel correction refers to a missing channel or to itself.");
+			return false;
+		}
+		// planes are read one at a time, virtual stacks may not support concurrent reads
+		final ImageProcessor[] planes = new ImageProcessor[nChannels];
+		final String[] keys = new String[nChannels];
+		try {
+			for (int c = 0; c < nChannels; c++) {
+				int index = ori.getStackIndex(c+1, slice, frame);
+				planes[c] = ori.getStack().getProcessor(index).duplicate(); // thresholds may modify the plane
+				if (getThresholdParmStr(profiles[c]) == null) {
+					logTxt.setText("Method doesn't exist. Process canceled.");
+					return false;
+				}
+				keys[c] = getMaskKey(profiles[c], index);
+			}
+		} catch (NumberFormatException ex) {
+			logTxt.setText("Parameter is not a number");
+			return false;
+		}
+		logTxt.setText("Thresholding "+nChannels+" channels...");
+		final GCCMaskCache.Entry[] masks = new GCCMaskCache.Entry[nChannels];
+		final AtomicInteger next = new AtomicInteger();
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = ThreadUtil.createThreadArray(Math.min(ij.Prefs.getThreads(), nChannels));
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int c = next.getAndIncrement(); c < nChannels; c = next.getAndIncrement()) {
+						Rectangle full = new Rectangle(0, 0, planes[c].getWidth(), planes[c].getHeight());
+						try {
+							masks[c] = computeMask(planes[c], full, full, 1, keys[c], profiles[c], null);
+						} catch (NumberFormatException ex) {
+							failed[0] = true;
+						}
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		if (failed[0]) {
+			logTxt.setText("Parameter is not a number");
+			return false;
+		}
+		channelMasks = new HashMap<String, GCCMaskCache.Entry>();
+		channelCells = new HashMap<String, GCCSpans[]>();
+		for (int c = 0; c < nChannels; c++) {
+			channelMasks.put(keys[c], masks[c]);
+		}
+		int nSaved = 0;
+		try {
+			for (int i = 0; i < nChannels; i++) {
+				setProfile(profiles[order[i]]);
+				ori.setPosition(order[i]+1, slice, frame);
+				if (!saveResults()) break;
+				nSaved++;
+			}
+		} finally {
+			channelMasks = null;
+			channelCells = null;
+			setProfile(current);
+			ori.setPosition(channel, slice, frame);
+		}
+		if (nSaved < nChannels) return false;
+		if (preview.getState()) {
+			process();
+		}
+		logTxt.setText("Results of the "+nChannels+" channels saved, parameters: "+used+".");
+		return true;
+	}
+	
+	/**
+	 * Saves the results of every plane of the images of the folder of the current image having its extension.
+	 * Several instances of the plugin, on this computer or on others, can work on the same folder at the same time:
+	 * each image is leased by one of them (see GCCLease) and the instance of a lease abandoned for
+	 * GCCLease.IMAGE_LEASE_TIME is considered crashed, its image being processed again by another one.
+	 * Images are processed on a worker thread, the other controls being disabled meanwhile,
+	 * and the folder button cancels the run after the plane being saved.
+	 */
+	private void saveFolder() {
+		if (ori == null || oriWin == null || !oriWin.isVisible()) {
+			logTxt.setText("Open an image of the folder to process.");
+			return;
+		}
+		final String dir = ori.getOriginalFileInfo().directory;
+		final String extension = getExtension(ori.getOriginalFileInfo().fileName);
+		final String[] names = new File(dir).list();
+		if (names == null) {
+			logTxt.setText("Cannot list "+dir);
+			return;
+		}
+		Arrays.sort(names);
+		// instances cooperate on a folder when they use the same parameters, other parameters start a new run
+		final String run = GCCResultCache.hash(getProfile().toString()).substring(0, 8);
+		folderCanceled = false;
+		viewportTimer.stop();
+		setControlsEnabled(false);
+		saveFolder.setLabel("Cancel folder");
+		logTxt.setText("Saving results of the folder...");
+		folderThread = new Thread("GCC folder") {
+			public void run() {
+				String message = "Folder processing stopped by an error.";
+				try {
+					message = saveFolderImages(dir, names, extension, run);
+				} finally {
+					final String log = message;
+					EventQueue.invokeLater(new Runnable() {
+						public void run() {
+							folderThread = null;
+							saveFolder.setLabel("Save results of folder");
+							setControlsEnabled(true);
+							logTxt.setText(log);
+						}
+					});
+				}
+			}
+		};
+		folderThread.start();
+	}
+	
+	/** Enables or disables the controls of the window, except the folder button and the log. */
+	private void setControlsEnabled(boolean enabled) {
+		for (Component c : frame.getComponents()) {
+			if (c != saveFolder && c != logTxt) {
+				c.setEnabled(enabled);
+			}
+		}
+	}
+	
+	/** Saves the images of names having the extension, on the folder thread, returns the message to log. */
+	private String saveFolderImages(String dir, String[] names, String extension, String run) {
+		final GCCLease leases = new GCCLease(dir+"GeneralCellCount");
+		int nSaved = 0, nFailed = 0;
+		for (String fileName : names) {
+			if (folderCanceled) break;
+			File file = new File(dir, fileName);
+			if (!file.isFile() || fileName.startsWith(".") || !getExtension(fileName).equalsIgnoreCase(extension)) continue;
+			final String name = fileName+"_"+run;
+			if (!leases.claim(name)) continue; // done or leased by another instance
+			java.util.Timer renewal = new java.util.Timer("GCC lease renewal", true); // the processing thread may be busy for long
+			renewal.schedule(new java.util.TimerTask() {
+				public void run() {
+					if (!leases.renew(name)) cancel();
+				}
+			}, GCCLease.IMAGE_LEASE_TIME/4, GCCLease.IMAGE_LEASE_TIME/4);
+			boolean done = false;
+			try {
+				closeOriRes();
+				if (openImage(file.getPath())) {
+					done = saveAllPlanes(leases, name);
+				}
+			} finally {
+				renewal.cancel();
+				leases.release(name, done);
+			}
+			if (done) {
+				nSaved++;
+			} else if (!folderCanceled) {
+				nFailed++;
+			}
+		}
+		return nSaved+" image(s) saved by this instance"+(nFailed > 0 ? ", "+nFailed+" failed" : "")+(folderCanceled ? ", canceled." : ".");
+	}
+	
+	/** Saves the results of every plane of ori, false if one fails or if the lease of the image was lost. */
+	private boolean saveAllPlanes(GCCLease leases, String name) {
+		int channel = ori.getChannel();
+		for (int t = 1; t <= ori.getNFrames(); t++) {
+			if (mergeSlices.getState() && ori.getNSlices() > 1) {
+				if (!saveStack(t, leases, name)) return false;
+				continue;
+			}
+			for (int z = 1; z <= ori.getNSlices(); z++) {
+				ori.setPosition(channel, z, t);
+				boolean saved = ori.getNChannels() > 1 ? saveAllChannels() : saveResults();
+				if (!saved || folderCanceled || !leases.renew(name)) return false;
+			}
+		}
+		return true;
+	}
+	
+	/** Rows of the cells of a stack merged across its slices, for one channel. */
+	private static class StackCount {
+		String fileNameStack; // like fileNameSC, "3D" instead of the slice
+		GCCStackCounter counter;
+		double[] areas; // of the regions
+		String methodParmStr;
+	}
+	
+	/**
+	 * Saves the results of every slice of frame t, then a row per region with the cells of the stack,
+	 * cells of adjacent slices closer than the minimum distance being merged (see GCCStackCounter).
+	 * Slices are processed in order, only the cells of the last ones are kept meanwhile.
+	 * The lease name is renewed after each slice when saving a folder, leases is null otherwise.
+	 */
+	private boolean saveStack(int t, GCCLease leases, String name) {
+		int channel = ori.getChannel(), slice = ori.getSlice(), frame = ori.getFrame();
+		int nSlices = ori.getNSlices();
+		stackCounts = new TreeMap<Integer, StackCount>();
+		try {
+			for (int z = 1; z <= nSlices; z++) {
+				ori.setPosition(channel, z, t);
+				boolean saved = ori.getNChannels() > 1 ? saveAllChannels() : saveResults();
+				if (!saved || folderCanceled || leases != null && !leases.renew(name)) return false;
+			}
+			String folder = ori.getOriginalFileInfo().directory+"GeneralCellCount";
+			GCCLease resultsLock = new GCCLease(folder);
+			if (!resultsLock.lock(RESULTS_FILE_NAME, 2*GCCLease.LOCK_LEASE_TIME)) {
+				logTxt.setText("Results file locked by another instance, results not saved.");
+				return false;
+			}
+			String totals = "";
+			try {
+				for (StackCount stack : stackCounts.values()) {
+					int[] counts = stack.counter.finish();
+					String[] rows = new String[counts.length];
+					for (int iRoi = 0; iRoi < counts.length; iRoi++) {
+						rows[iRoi] = stack.fileNameStack+(iRoi+1)+";"+counts[iRoi]+
+								";"+stack.areas[iRoi]+";"+(int)(stack.areas[iRoi]/(cal.pixelWidth*cal.pixelHeight))+stack.methodParmStr;
+					}
+					if (!mergeResults(folder+File.separator+RESULTS_FILE_NAME, stack.fileNameStack, rows)) {
+						logTxt.setText("Cannot write "+RESULTS_FILE_NAME);
+						return false;
+					}
+					totals = totals+(totals.isEmpty() ? "" : ", ")+stack.counter.getTotal();
+				}
+			} finally {
+				resultsLock.unlock(RESULTS_FILE_NAME);
+			}
+			logTxt.setText("Results of the "+nSlices+" slices saved, "+totals+" cell(s) in the stack.");
+			return true;
+		} finally {
+			stackCounts = null;
+			ori.setPosition(channel, slice, frame);
+		}
+	}
+	
+	/** Adds the cells of the plane just saved to the count of its stack, in the regions of the first slice. */
+	private boolean addToStack(String fileNameStack) {
+		StackCount stack = stackCounts.get(ori.getChannel());
+		if (stack == null) {
+			int nROIs = getRM().getCount();
+			GCCSpans[] regions = new GCCSpans[nROIs];
+			double[] areas = new double[nROIs];
+			for (int iRoi = 0; iRoi < nROIs; iRoi++) {
+				regions[iRoi] = GCCSpans.fromRoi(getRM().getRoi(iRoi), ori.getWidth(), ori.getHeight());
+				areas[iRoi] = regions[iRoi].getArea()*cal.pixelWidth*cal.pixelHeight;
+			}
+			double distance;
+			try {
+				distance = Double.parseDouble(minDistanceTxt.getText());
+			} catch (NumberFormatException ex) {
+				logTxt.setText("Parameter is not a number");
+				return false;
+			}
+			stack = new StackCount();
+			stack.fileNameStack = fileNameStack;
+			stack.counter = new GCCStackCounter(regions, distance, cal.pixelDepth/cal.pixelWidth); // z step in pixels
+			stack.areas = areas;
+			stack.methodParmStr = methodParmStr;
+			stackCounts.put(ori.getChannel(), stack);
+		}
+		stack.counter.addSlice(ori.getSlice(), xCell, yCell, areaCell, countCell);
+		return true;
+	}
+	
+	private static String getExtension(String fileName) {
+		int index = fileName.lastIndexOf('.');
+		return index > 0 ? fileName.substring(index+1) : "";
+	}
+	
+	/**
+	 * Indexes of the channels ordered so that each channel comes after the one its channel correction uses,
+	 * or null if a correction uses a channel that doesn't exist or depends on itself.
+	 */
+	private int[] getChannelOrder(GCCProfile[] profiles) {
+		int n = profiles.length;
+		int[] order = new int[n];
+		boolean[] done = new boolean[n];
+		int nDone = 0;
+		try {
+			while (nDone < n) {
+				int nBefore = nDone;
+				for (int c = 0; c < n; c++) {
+					if (done[c]) continue;
+					int other = profiles[c].getBoolean("channelCorrectionEnabled") ? profiles[c].getInt("channelCorrection")-1 : -1;
+					if (other >= n || other == c || other < -1) return null;
+					if (other == -1 || done[other]) {
+						order[nDone++] = c;
+						done[c] = true;
+					}
+				}
+				if (nDone == nBefore) return null; // channels correcting each other
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		return order;
+	}
+	
+	/**
+	 * Key of the results of the current plane: plugin version, content of the image and of the region
+	 * and channel correction files, and every parameter. Null if a file can't be read or a parameter isn't valid.
+	 */
+	private String getResultKey(String suffix) {
+		try {
+			String thresholdParmStr = getThresholdParmStr(getProfile());
+			if (thresholdParmStr == null) return null;
+			GCCResultCache cache = getResultCache();
+			FileInfo fi = ori.getOriginalFileInfo();
+			return GCCResultCache.hash(VERSION, suffix,
+					cache.getFileHash(new File(fi.directory, fi.fileName)),
+					oriROIsPath != null ? cache.getFileHash(new File(oriROIsPath)) : "-",
+					doChanCorr ? cache.getFileHash(new File(getChanCorrCellsPath())) : "-",
+					cellSizeTxt.getText(), cellCircularityTxt.getText(), minDistanceTxt.getText(), method.getItem(methodSelected), thresholdParmStr,
+					whiteBackground.getState()+";"+ignoreBlack.getState()+";"+ignoreWhite.getState()+";"+splitCells.getState(),
+					cal.pixelWidth+";"+cal.pixelHeight+";"+cal.getUnit(),
+					cellTableSelected+";"+measureChannels.getState());
+		} catch (IOException ex) {
+			return null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+	
+	private GCCResultCache getResultCache() {
+		String folder = ori.getOriginalFileInfo().directory+"GeneralCellCount";
+		if (resultCache == null || !resultCache.getFolder().equals(new File(folder).getPath())) {
+			new File(folder).mkdir();
+			resultCache = new GCCResultCache(folder);
+		}
+		return resultCache;
+	}
+	
+	/**
+	 * Cells of the last plane whose results were saved, with what the results need of them.
+	 * Saving again with other regions only counts these cells in the new regions,
+	 * the whole plane being processed whatever the regions.
+	 */
+	private static class CountedCells {
+		String key; // plane and parameters, without the regions
+		GCCMaskCache.Entry entry;
+		GCCLabeling cells;
+		Roi[] cellRois;
+		double[] xCell, yCell, areaCell;
+		int[] nucleusInCell, countCell;
+		int[][] nucleusInCellPos;
+		boolean[] dupCell;
+		String methodParmStr, cellTableOptions;
+	}
+	
+	/** Like getResultKey, without the regions nor the cell table options, or null. */
+	private String getCellsKey(String suffix) {
+		try {
+			String thresholdParmStr = getThresholdParmStr(getProfile());
+			if (thresholdParmStr == null) return null;
+			GCCResultCache cache = getResultCache();
+			FileInfo fi = ori.getOriginalFileInfo();
+			return GCCResultCache.hash(VERSION, suffix,
+					cache.getFileHash(new File(fi.directory, fi.fileName)),
+					doChanCorr ? cache.getFileHash(new File(getChanCorrCellsPath())) : "-",
+					cellSizeTxt.getText(), cellCircularityTxt.getText(), minDistanceTxt.getText(), method.getItem(methodSelected), thresholdParmStr,
+					whiteBackground.getState()+";"+ignoreBlack.getState()+";"+ignoreWhite.getState()+";"+splitCells.getState(),
+					cal.pixelWidth+";"+cal.pixelHeight+";"+cal.getUnit());
+		} catch (IOException ex) {
+			return null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+	
+	/** Cells of the last results saved if they are those of the current plane and parameters, or null. */
+	private CountedCells getReusableCells(String cellsKey) {
+		if (lastCells == null || cellsKey == null || !lastCells.key.equals(cellsKey)) return null;
+		return lastCells;
+	}
+	
+	/** Keeps the cells just computed at full resolution for the next results. */
+	private void keepCells(String cellsKey, GCCMaskCache.Entry entry) {
+		if (lastCells != null && lastCells.cells != cells) {
+			lastCells.cells.release();
+		}
+		lastCells = null;
+		if (cellsKey == null) return;
+		CountedCells kept = new CountedCells();
+		kept.key = cellsKey;
+		kept.entry = entry;
+		kept.cells = cells;
+		kept.cellRois = cellRois;
+		kept.xCell = xCell;
+		kept.yCell = yCell;
+		kept.areaCell = areaCell;
+		kept.nucleusInCell = nucleusInCell;
+		kept.nucleusInCellPos = nucleusInCellPos;
+		kept.countCell = countCell.clone(); // changed in place by redrawDuplicates
+		kept.dupCell = dupCell;
+		kept.methodParmStr = methodParmStr;
+		lastCells = kept;
+	}
+	
+	/** Shows the kept cells again as the current ones, instead of processing the plane. */
+	private void restoreCells(CountedCells kept) {
+		previewGeneration++;
+		ori.deleteRoi();
+		res = ori.createImagePlus();
+		res.setTitle("DUP_"+ori.getTitle());
+		setCells(kept.cells);
+		previewScale = 1;
+		previewArea = null;
+		showMask(kept.entry);
+		cellRois = kept.cellRois;
+		xCell = kept.xCell;
+		yCell = kept.yCell;
+		areaCell = kept.areaCell;
+		nucleusInCell = kept.nucleusInCell;
+		nucleusInCellPos = kept.nucleusInCellPos;
+		countCell = kept.countCell.clone();
+		dupCell = kept.dupCell;
+		methodParmStr = kept.methodParmStr;
+		drawCells();
+	}
+	
+	/**
+	 * Processes the plane, saves cells, snapshot and cell table, and returns the rows of the results file, or null.
+	 * If the cells of the last results are still valid, only the regions are counted again.
+	 */
+	private String[] computeResults(String suffix, String fileNameSC) {
+		if (resWin != null && resWin.isVisible()) {
+			res.changes = false;
+			res.close();
+		}
+		String cellsKey = getCellsKey(suffix);
+		CountedCells kept = getReusableCells(cellsKey);
+		if (kept != null) {
+			restoreCells(kept);
+		} else {
+			if (!process(true)) return null;
+			keepCells(cellsKey, lastEntry);
+		}
+		preview.setState(true);
+		viewportTimer.start();
+		oriCellsPath = getPathExt(ori, "Cells"+suffix, "zip");
+		Roi[] objects = kept == null || !new File(oriCellsPath).exists() ? getObjectRois() : new Roi[0]; // cells unchanged
+		if (objects.length > 0) {
+			try {
+				GCCRoiZip.write(oriCellsPath, objects);
+			} catch (IOException ex) {
+				logTxt.setText("Cannot save "+new File(oriCellsPath).getName());
+				return null;
+			}
+		}
+		if (channelCells != null && !doChanCorr) { // every cell is in the zip file
+			channelCells.put(oriCellsPath, GCCSpans.fromLabeling(cells));
+		}
+		String flatPath = getPathExt(ori, suffix, "png");
+		ImagePlus flat1 = res.flatten();
+		if (!openImageROIs(true)) {									// open regions selected by user
+			getRM().addRoi(new Roi(0, 0, ori.getWidth(), ori.getHeight()));	// or full image if none saved
+		}
+		int nROIs = getRM().getCount();
+		for (int i = 0; i < nROIs; i++) {
+			getRM().getRoi(i).setStrokeColor(Color.green);			// set regions selected as green
+		}
+		getRM().runCommand(flat1, "Show All with Labels");
+		ImagePlus flat2 = flat1.flatten();							// flatten them
+		IJ.save(flat2, flatPath);
+		flat1.close();
+		flat2.close();
+		double[] areas = new double[nROIs];
+		int[] nCellsIn = new int[nROIs];
+		Overlay overlay = res.getOverlay();
+		for (int iRoi = 0; iRoi < nROIs; iRoi++) {
+			Roi roi = getRM().getRoi(iRoi);
+			overlay.add((Roi)roi.clone());							// regions shown with the cells
+			GCCSpans region = GCCSpans.fromRoi(roi, ori.getWidth(), ori.getHeight());
+			areas[iRoi] = region.getArea()*cal.pixelWidth*cal.pixelHeight;
+			nCellsIn[iRoi] = GCCPipeline.countInRegion(region, xCell, yCell, countCell);
+		}
+		res.setOverlay(overlay);
 		
-		IJ.saveString(results, resFile);
-		logTxt.setText("Results saved.");
+		String[] rows = new String[nROIs];
+		for (int iRoi = 0; iRoi < nROIs; iRoi++) {
+			rows[iRoi] = fileNameSC +(iRoi+1)+";"+nCellsIn[iRoi]+
+					";"+areas[iRoi]+";"+(int)(areas[iRoi]/(cal.pixelWidth*cal.pixelHeight))+methodParmStr;
+		}
+		String cellTableOptions = cellTableSelected+";"+measureChannels.getState();
+		boolean cellTableSaved = kept != null && cellTableOptions.equals(kept.cellTableOptions)
+				&& new File(getPathExt(ori, "CellTable"+suffix, cellTableSelected == 2 ? "gcct" : "csv")).exists();
+		if (cellTableSelected > 0 && !cellTableSaved && !saveCellTable(suffix)) {
+			logTxt.setText("Results saved, failed to save cell table.");
+		} else {
+			if (lastCells != null) lastCells.cellTableOptions = cellTableOptions;
+			logTxt.setText(kept != null ? "Regions counted again, cells unchanged. Results saved." : "Results saved.");
+		}
+		return rows;
+	}
+	
+	private boolean saveCellTable(String suffix) {
+		boolean binary = cellTableSelected == 2;
+		String path = getPathExt(ori, "CellTable"+suffix, binary ? "gcct" : "csv");
+		GCCLabeling.Intensities intensities = null;
+		String[] extraColumns = null;
+		if (measureChannels.getState()) { // every channel of the current position, measured in one pass
+			int nChannels = ori.getNChannels();
+			ImageProcessor[] channels = new ImageProcessor[nChannels];
+			for (int c = 0; c < nChannels; c++) {
+				channels[c] = ori.getStack().getProcessor(ori.getStackIndex(c+1, ori.getSlice(), ori.getFrame()));
+			}
+			intensities = cells.measure(channels);
+			extraColumns = new String[5*nChannels];
+			for (int c = 0; c < nChannels; c++) {
+				extraColumns[5*c] = "Mean c"+(c+1);
+				extraColumns[5*c+1] = "IntDen c"+(c+1);
+				extraColumns[5*c+2] = "Min c"+(c+1);
+				extraColumns[5*c+3] = "Max c"+(c+1);
+				extraColumns[5*c+4] = "StdDev c"+(c+1);
+			}
+		}
+		double pixelArea = cal.pixelWidth*cal.pixelHeight;
+		try (GCCCellTableWriter writer = GCCCellTableWriter.open(path, binary, extraColumns)) {
+			double[] extra = intensities != null ? new double[extraColumns.length] : null;
+			for (int iCell = 0; iCell < xCell.length; iCell++) {
+				if (intensities != null) {
+					for (int c = 0; c < intensities.getChannelCount(); c++) {
+						extra[5*c] = intensities.getMean(c, iCell);
+						extra[5*c+1] = intensities.getRawIntDen(c, iCell)*pixelArea;
+						extra[5*c+2] = intensities.getMin(c, iCell);
+						extra[5*c+3] = intensities.getMax(c, iCell);
+						extra[5*c+4] = intensities.getStdDev(c, iCell);
+					}
+				}
+				writer.writeRow(iCell+1, xCell[iCell], yCell[iCell], areaCell[iCell], cells.getArea(iCell), cells.getCircularity(iCell),
+						dupCell[iCell], nucleusInCell[iCell], countCell[iCell], nucleusInCellPos[iCell], extra);
+			}
+			return true;
+		} catch (IOException ex) {
+			return false;
+		}
 	}
 	
 	private String removeLinesStartingWith(String str, String start) {
@@ -715,6 +1454,9 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 			methodSelected = method.getSelectedIndex();
 			updateElementsFrame(methodSelected, true);
 			frame.pack();
+		} else if (b == backgroundAuto || b == backgroundAutoLoc || b == backgroundChast) {
+			updateBackgroundLabels();
+			frame.pack();
 		} else if (b == autoThMethod) {
 			autoThMethodSelected = autoThMethod.getSelectedIndex();
 		} else if (b == autoLocalThMethod) {
@@ -727,12 +1469,17 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 			updateElementFrame(channelCorrectionLabel, 	1, 93,	1, 1,	1, 1,	0, 0, display);
 			updateElementFrame(channelCorrectionTxt, 	2, 93,	1, 1,	1, 1,	0, 0, display);
 			frame.pack();
+		} else if (b == cellTable) {
+			cellTableSelected = cellTable.getSelectedIndex();
+			return; // only used when saving results
 		} else if (b == preview) {
 		} else if (b == whiteBackground) {
 		}
 		if (preview.getState()) {
 			process();
+			viewportTimer.start();
 		} else {
+			viewportTimer.stop();
 			if (resWin != null && resWin.isVisible()) {
 				resPosX = resWin.getLocation().getX();
 				resPosY = resWin.getLocation().getY();
@@ -745,292 +1492,100 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	}
 	
 	private Boolean process() {
+		return process(false);
+	}
+	
+	/**
+	 * Threshold and analyse the current plane of ori, then display the cells on res.
+	 * If fullResolution is false, only the visible part of the image is processed, at the pyramid level
+	 * matching the zoom of the windows, and the full resolution result replaces it when computed in background.
+	 */
+	private Boolean process(boolean fullResolution) {
 		try {
+			previewGeneration++;
 			if (ori == null || oriWin == null || !oriWin.isVisible()) {
 				logTxt.setText("No image to process");
 				return false;
 			}
-			IJ.run(ori, "Select None", "");
-			res = ori.crop();
-			if (whiteBackground.getState()) {
-				IJ.run(res, "Invert", "");
-			}
-			methodParmStr = ";"+cellSizeTxt.getText()+";"+cellCircularityTxt.getText()+";"+minDistanceTxt.getText()+";"+method.getItem(methodSelected);
-			switch(methodSelected) {
-			case 0: // "Auto Threshold"
-				double gaussianSigmaAuto = Double.parseDouble(gaussianSigmaAutoTxt.getText());
-				double medianRadiusAuto = Double.parseDouble(medianRadiusAutoTxt.getText());
-				if (gaussianSigmaAuto > 0) {
-					ImagePlus res2 = res.duplicate();
-					IJ.run(res, "Gaussian Blur...", "sigma="+gaussianSigmaAuto+" scaled");
-					res = ic.run("Subtract create", res2, res);
-				}
-				if (medianRadiusAuto > 0) {
-					IJ.run(res, "Median...", "radius="+medianRadiusAuto);
-				}
-				if (res.getBitDepth() != 8) {
-					IJ.resetMinAndMax(res);
-					IJ.run(res, "8-bit", "");
-				}
-				String ignoreBlackWhite = "";
-				if (ignoreBlack.getState()) {ignoreBlackWhite += " ignore_black";}
-				if (ignoreWhite.getState()) {ignoreBlackWhite += " ignore_white";}
-				IJ.run(res, "Auto Threshold", "method="+autoThMethod.getSelectedItem()+ignoreBlackWhite+" white");
-				methodParmStr=methodParmStr+";GaussianSigma:"+gaussianSigmaAuto+";MedianRadius:"+medianRadiusAuto
-						+";AutoThMethod:"+autoThMethod.getSelectedItem()+";;;";
-				break;
-			case 1: // "Auto Local Threshold"
-				double gaussianSigmaAutoLoc = Double.parseDouble(gaussianSigmaAutoLocTxt.getText());
-				double medianRadiusAutoLoc = Double.parseDouble(medianRadiusAutoLocTxt.getText());
-				double localThRadius = Double.parseDouble(localThRadiusTxt.getText());
-				if (gaussianSigmaAutoLoc > 0) {
-					ImagePlus res2 = res.duplicate();
-					IJ.run(res, "Gaussian Blur...", "sigma="+gaussianSigmaAutoLoc+" scaled");
-					res = ic.run("Subtract create", res2, res);
-				}
-				if (medianRadiusAutoLoc > 0) {
-					IJ.run(res, "Median...", "radius="+medianRadiusAutoLoc);
-				}
-				if (res.getBitDepth() != 8) {
-					IJ.resetMinAndMax(res);
-					IJ.run(res, "8-bit", "");
-				}
-				double localParm1 = 0, localParm2 = 0;
-				methodParmStr=methodParmStr+";GaussianSigma:"+gaussianSigmaAutoLoc+";MedianRadius:"+medianRadiusAutoLoc
-						+";LocalThRadius:"+localThRadius+";LocalThMethod:"+autoLocalThMethod.getSelectedItem();
-				switch(autoLocalThMethod.getSelectedIndex()) {
-				case 0:
-					localParm1 = Double.parseDouble(localBernsenParm1Txt.getText());
-					methodParmStr=methodParmStr+";ContrastTh:"+localBernsenParm1Txt.getText()+";";
-					break;
-				case 2:
-					localParm1 = Double.parseDouble(localMeanParm1Txt.getText());
-					methodParmStr=methodParmStr+";Offset:"+localMeanParm1Txt.getText()+";";
-					break;
-				case 3:
-					localParm1 = Double.parseDouble(localMedianParm1Txt.getText());
-					methodParmStr=methodParmStr+";Offset:"+localMedianParm1Txt.getText()+";";
-					break;
-				case 4:
-					localParm1 = Double.parseDouble(localMidGreyParm1Txt.getText());
-					methodParmStr=methodParmStr+";Offset:"+localMidGreyParm1Txt.getText()+";";
-					break;
-				case 5:
-					localParm1 = Double.parseDouble(localNiblackParm1Txt.getText());
-					localParm2 = Double.parseDouble(localNiblackParm2Txt.getText());
-					methodParmStr=methodParmStr+";k value:"+localNiblackParm1Txt.getText()+";Offset:"+localNiblackParm2Txt.getText();
-					break;
-				case 7:
-					localParm1 = Double.parseDouble(localPhansalkarParm1Txt.getText());
-					localParm2 = Double.parseDouble(localPhansalkarParm2Txt.getText());
-					methodParmStr=methodParmStr+";k value:"+localPhansalkarParm1Txt.getText()+";r value:"+localPhansalkarParm2Txt.getText();
-					break;
-				case 8:
-					localParm1 = Double.parseDouble(localSauvolaParm1Txt.getText());
-					localParm2 = Double.parseDouble(localSauvolaParm2Txt.getText());
-					methodParmStr=methodParmStr+";k value:"+localSauvolaParm1Txt.getText()+";r value:"+localSauvolaParm2Txt.getText();
-					break;
-				default:
-					methodParmStr=methodParmStr+";;";
-					break;
-				}
-				IJ.run(res, "Auto Local Threshold", "method="+autoLocalThMethod.getSelectedItem()+" radius="+localThRadius+
-						" parameter_1="+localParm1+" parameter_2="+localParm2+" white");
-				break;
-			case 2: // Chastagnier Threshold
-				ImagePlus gaussianLow = res.duplicate();
-				IJ.run(gaussianLow, "Gaussian Blur...", "sigma="+Double.parseDouble(gaussianSigmaChast1Txt.getText())+" scaled");
-				gaussianLow = ic.run("Subtract create stack", res, gaussianLow);
-				IJ.run(gaussianLow, GCCProcess.autoThCmd, "method=Li white stack");
-				ImagePlus gaussianHigh = res.duplicate();
-				IJ.run(gaussianHigh, "Gaussian Blur...", "sigma="+Double.parseDouble(gaussianSigmaChast2Txt.getText())+" scaled");
-				gaussianHigh = ic.run("Subtract create stack", res, gaussianHigh);
-				IJ.run(gaussianHigh, GCCProcess.autoThCmd, "method=Li white stack");
-				ic.run("AND stack", gaussianLow, gaussianHigh);
-				IJ.run(res, GCCProcess.autoThCmd, "method=Otsu ignore_black ignore_white white stack");
-				ic.run("OR stack", res, gaussianLow);
-				methodParmStr=methodParmStr+";GaussianSigma1:"+gaussianSigmaChast1Txt.getText()+";GaussianSigma2:"+gaussianSigmaChast2Txt.getText()+";;;;";
-				break;
-			default:
+			GCCProfile p = getProfile();
+			String thresholdParmStr = getThresholdParmStr(p);
+			if (thresholdParmStr == null) {
 				logTxt.setText("Method doesn't exist. Process canceled.");
 				return false;
-			} // end of switch
-			
-			String[] cellSizeParts = cellSizeTxt.getText().split("-");
-			String cellSizeSearch = cellSizeTxt.getText();
+			}
+			methodParmStr = ";"+cellSizeTxt.getText()+";"+cellCircularityTxt.getText()+";"+minDistanceTxt.getText()+";"+method.getItem(methodSelected)
+					+thresholdParmStr;
+			String key = getMaskKey(p, ori.getCurrentSlice());
+			ori.deleteRoi();
+			res = ori.createImagePlus(); // shows the mask once computed
+			res.setTitle("DUP_"+ori.getTitle());
 			doChanCorr = channelCorrection.getState();
-			String oriChanCorrCellsPath = "";
-			double[][] refCoords = new double[0][0];
-			if (doChanCorr) {
-				String suffixChanCorr = "";
-				if (ori.getNChannels() > 1) {
-					suffixChanCorr = suffixChanCorr+"_c"+channelCorrectionTxt.getText();
-				}
-				if (ori.getNSlices() > 1) {
-					suffixChanCorr = suffixChanCorr +"_s"+ori.getSlice();
-				}
-				if (ori.getNFrames() > 1) {
-					suffixChanCorr = suffixChanCorr+"_f"+ori.getFrame();
-				}
-				oriChanCorrCellsPath = getPathExt(ori, "Cells"+suffixChanCorr, "zip");
-				File f = new File(oriChanCorrCellsPath);
-				if (!f.exists()) {
-					logTxt.setText("Incorrect channel number or zip file doesn't exist.");
-					return false;
-				} else {
-					if (WindowManager.getActiveWindow() != oriWin) { // if it is not the active window, the getStatistics that follows is slow and wrong
-						WindowManager.setCurrentWindow(oriWin);
-					}
-					cellSizeSearch = cellSizeParts[0];
-					getRM().reset();
-					getRM().runCommand("Open", oriChanCorrCellsPath);
-					int cellCount = getRM().getCount();
-					refCoords = new double[cellCount][7];
-					for (int i = 0; i < cellCount; i++) {
-						getRM().select(i);
-						istat = ori.getStatistics(ImageStatistics.CENTROID+ImageStatistics.RECT+ImageStatistics.AREA);
-						refCoords[i][0] = istat.xCentroid/cal.pixelWidth; // convert to uncalibrated data
-						refCoords[i][1] = istat.yCentroid/cal.pixelHeight;
-						refCoords[i][2] = istat.roiY/cal.pixelHeight;
-						refCoords[i][3] = (istat.roiY+istat.roiHeight)/cal.pixelHeight;
-						refCoords[i][4] = istat.roiX/cal.pixelWidth;
-						refCoords[i][5] = (istat.roiX+istat.roiWidth)/cal.pixelWidth;
-						refCoords[i][6] = istat.area;
-					}
+			// pixels of the plane are only read, computeMask works on copies of the parts processed
+			ImageProcessor plane = GCCBufferPool.view(ori.getProcessor());
+			Rectangle full = new Rectangle(0, 0, plane.getWidth(), plane.getHeight());
+			Rectangle inner = full, region = full;
+			// channel correction compares with full resolution nuclei of the whole plane
+			boolean restrict = !fullResolution && !doChanCorr;
+			int halo = getHalo(p);
+			int scale = restrict ? getPreviewScale() : 1;
+			if (restrict) {
+				Rectangle visible = getViewportArea();
+				if (visible != null) {
+					inner = visible;
+					region = new Rectangle(inner.x-halo, inner.y-halo, inner.width+2*halo, inner.height+2*halo).intersection(full);
 				}
 			}
-			getRM().reset();
-			IJ.run(res, "Analyze Particles...", "size="+cellSizeSearch+" circularity="+cellCircularityTxt.getText()+" display clear add");
-			
-			if (resWin == null || !resWin.isVisible()) {
-				ImageWindow.setNextLocation((int)resPosX, (int)resPosY);
-				res.show();
-				resWin = res.getWindow();
-			} else {
-				if (WindowManager.getActiveWindow() != resWin) { // if it is not the active window, the getStatistics that follows is slow and wrong
-					WindowManager.setCurrentWindow(resWin);
-				}
-				double magnification = resWin.getCanvas().getMagnification();
-				Rectangle rect = resWin.getCanvas().getSrcRect();
-				resWin.setImage(res);
-				resWin.getCanvas().setSourceRect(rect);
-				resWin.getCanvas().setMagnification(magnification);
+			GCCMaskCache.Entry entry = fullResolution && channelMasks != null ? channelMasks.get(key) : null;
+			// parts of the plane are thresholded with the levels of the whole plane, their masks are kept apart from exact ones
+			String partKey = key+";plane levels";
+			if (entry == null) {
+				entry = maskCache.get(key, 1, inner); // full resolution already computed
 			}
-			IJ.run("Remove Overlay", "");
-			
-			int nCells = getRM().getCount();
-			xCell = new double[nCells];
-			yCell = new double[nCells];
-			areaCell = new double[nCells];
-			nucleusInCell = new int[nCells];
-			nucleusInCellPos = new String[nCells];
-			if (doChanCorr) {
-				getRM().runCommand("Open", oriChanCorrCellsPath);
-			}
-			int searchStart = 0;
-			int searchIndex = 0;
-			int searchStop = refCoords.length;
-			for (int iCell = 0; iCell < nCells; iCell++) {
-				getRM().select(iCell);
-				istat = res.getStatistics(ImageStatistics.CENTROID+ImageStatistics.AREA);
-				xCell[iCell] = istat.xCentroid/cal.pixelWidth; // divide by calibration to get pixel values
-				yCell[iCell] = istat.yCentroid/cal.pixelHeight;
-				areaCell[iCell] = istat.area; // calibrated area
-				if (doChanCorr) {
-					//Roi r = getRM().getRoi(iCell);
-					nucleusInCell[iCell] = 0;
-					nucleusInCellPos[iCell] = "";
-					istat = res.getStatistics(ImageStatistics.RECT);
-					while (searchStart < searchStop && refCoords[searchStart][3] < istat.roiY/cal.pixelHeight) {
-						searchStart++;
-					}
-					searchIndex = searchStart;
-					double xStart = istat.roiX/cal.pixelWidth;
-					double xStop = (istat.roiX+istat.roiWidth)/cal.pixelWidth;
-					double yStop = (istat.roiY+istat.roiHeight)/cal.pixelHeight;
-					while (searchIndex < searchStop && refCoords[searchIndex][2] < yStop) {
-						if (!(refCoords[searchIndex][5] < xStart || refCoords[searchIndex][4] > xStop)) {
-							getRM().setSelectedIndexes(new int[]{iCell, searchIndex+nCells});
-							getRM().runCommand(res, "AND");
-							if (res.getRoi() != null) {
-								istat = res.getStatistics(ImageStatistics.AREA);
-								if (istat.area/refCoords[searchIndex][6] >= 0.5) { // if half the nucleus is inside the cell
-								//if (r.contains((int)refCoords[searchIndex][0], (int)refCoords[searchIndex][1])) {
-									nucleusInCell[iCell]++;
-									nucleusInCellPos[iCell]+=Integer.toString((int)refCoords[searchIndex][0])+";"+Integer.toString((int)refCoords[searchIndex][1])+";";
-								}
-							}
-						}
-						searchIndex++;
-					}
-					if (nucleusInCellPos[iCell].endsWith(";")) { // remove the potential extra ;
-						nucleusInCellPos[iCell] = nucleusInCellPos[iCell].substring(0, nucleusInCellPos[iCell].length()-1);
-					}
-				}
+			if (entry == null) {
+				entry = maskCache.get(partKey, 1, inner);
 			}
-			
+			if (entry == null && scale > 1) {
+				entry = maskCache.get(key, scale, inner);
+			}
+			if (entry == null && scale > 1) {
+				entry = maskCache.get(partKey, scale, inner);
+			}
+			if (entry == null && region.equals(full)) {
+				entry = computeMask(plane, region, inner, scale, key, p, null);
+			} else if (entry == null) {
+				entry = computeMask(plane, region, inner, scale, partKey, p, getPlaneLevels(plane, key, p));
+			}
+			String[] cellSizeParts = cellSizeTxt.getText().split("-");
+			String cellSizeSearch = cellSizeTxt.getText();
+			String oriChanCorrCellsPath = "";
+			GCCSpans[] nuclei = new GCCSpans[0];
 			if (doChanCorr) {
-				for (int i = getRM().getCount()-1; i >= nCells; i--) {
-					getRM().select(nCells);
-					getRM().runCommand("Delete");
-				}
-				int nRemoved = 0;
-				int nDup = 0;
-				double minArea = Double.parseDouble(cellSizeParts[0]);
-				double maxArea;
-				if (cellSizeParts.length > 1) {
-					maxArea = Double.parseDouble(cellSizeParts[1]);
-				} else {
-					maxArea = Double.MAX_VALUE;
-				}
-				double meanArea;
-				boolean removeROI;
-				for (int i = 0; i < nCells; i++) {
-					removeROI = false;
-					nDup = 0;
-					if (nucleusInCell[i] == 0) {
-						removeROI = true;
-					} else {
-						meanArea = areaCell[i]/(double)nucleusInCell[i];
-						if (meanArea > maxArea) {
-							removeROI = true;
-						} else if (meanArea < minArea) {
-							nDup = (int)Math.floor(areaCell[i]/minArea)-1;
-						} else {
-							nDup = nucleusInCell[i]-1;
-						}
+				oriChanCorrCellsPath = getChanCorrCellsPath();
+				cellSizeSearch = cellSizeParts[0];
+				nuclei = channelCells != null ? channelCells.get(oriChanCorrCellsPath) : null; // saved by the same run
+				if (nuclei == null) {
+					File f = new File(oriChanCorrCellsPath);
+					if (!f.exists()) {
+						logTxt.setText("Incorrect channel number or zip file doesn't exist.");
+						return false;
 					}
-					if (removeROI) {
-						getRM().select(i-nRemoved);
-						getRM().runCommand("Delete");
-						nRemoved++;
-					} else {
-						for (int j = 0; j < nDup; j++) {
-							getRM().addRoi(getRM().getRoi(i-nRemoved));
-							getRM().rename(getRM().getCount()-1, getRM().getName(i-nRemoved));
-						}
+					try {
+						nuclei = GCCRoiZip.readSpans(oriChanCorrCellsPath, ori.getWidth(), ori.getHeight());
+					} catch (IOException ex) {
+						logTxt.setText("Cannot read "+f.getName());
+						return false;
 					}
-					//System.out.println(""+i+" "+nRemoved+" "+nDup+" "+nucleusInCell[i]);
 				}
-				getRM().runCommand("Sort");
 			}
-			
-			// comment faire pour afficher les noyaux qui sont dans des cellules ? -> ne pas le faire
-			// comment compter le vrai nombre de cellules qui ne correspond ni au nombre de cellules, ni au nombre de noyaux... ? -> dupliquer les ROIs
-			// quand il y a plusieurs noyaux, comme ça ça correspond au nombre de ROIs
-			// et si une cellule comporte plusieurs noyaux mais que du coup sa taille passe en dessous du seuil, la virer, la compter comme une ?
-			// -> 1 ou floor(area / min_area)
-			dupCell = areCellDuplicates(xCell, yCell, areaCell, Double.parseDouble(minDistanceTxt.getText()));
-			for (int iCell = 0; iCell < nCells; iCell++) {
-				getRM().select(iCell);
-				if (dupCell[iCell]) {
-					getRM().runCommand("Set Fill Color", "yellow");
-				} else {
-					getRM().runCommand("Set Fill Color", "red");
-				}
+			double[] sizeRange = GCCPipeline.parseRange(cellSizeSearch);
+			double[] circularityRange = GCCPipeline.parseRange(cellCircularityTxt.getText());
+			double[] cellSizeRange = GCCPipeline.parseRange(cellSizeTxt.getText()); // areas per nucleus with channel correction
+			previewArea = entry.inner.equals(full) ? null : entry.inner;
+			lastEntry = entry;
+			showCells(entry, labelCells(entry, sizeRange, circularityRange), nuclei, cellSizeRange);
+			if (entry.scale > 1) {
+				refineInBackground(plane, entry, p, sizeRange, circularityRange, nuclei, cellSizeRange);
 			}
-			getRM().runCommand(res, "Show All without labels");
-			logTxt.setText("Preview displayed. "+getRM().getCount()+" object(s) detected.");
 			return true;
 		} catch (NumberFormatException ex) {
 			logTxt.setText("Parameter is not a number");
@@ -1038,28 +1593,448 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		}
 	}
 	
-	private boolean[] areCellDuplicates(double[] xPos, double[] yPos, double[] areaCell, double distance) {
-		if (xPos.length != yPos.length) return null;
-		boolean[] isDuplicate = new boolean[xPos.length];
-		if (distance > 0 && !doChanCorr) { // disabled if distance is zero or channel correction is enabled
-			for (int i = 0; i < xPos.length; i++) {
-				int j = i+1;
-				while (j < xPos.length && yPos[j]-yPos[i] <= distance) { // compare only with ROIs in the distance lines range
-					if (Math.abs(xPos[j]-xPos[i]) <= distance) { // compare only with ROIs in the range [pos-distance; pos+distance]
-						if (Math.sqrt(Math.pow(xPos[j]-xPos[i], 2)+Math.pow(yPos[j]-yPos[i], 2)) <= distance) {
-							if (areaCell[i] > areaCell[j]) {
-								isDuplicate[j] = true;
-							} else {
-								isDuplicate[i] = true;
+	/** Key of the masks of stack plane index computed with the parameters of p. */
+	private String getMaskKey(GCCProfile p, int index) {
+		return getThresholdParmStr(p)+";"+p.get("whiteBackground")+";"+p.get("ignoreBlack")+";"+p.get("ignoreWhite")+";"+p.get("splitCells")+";"+index;
+	}
+	
+	/** Cells saved for the other channel of the current position, used by channel correction. */
+	private String getChanCorrCellsPath() {
+		String suffixChanCorr = "";
+		if (ori.getNChannels() > 1) {
+			suffixChanCorr = suffixChanCorr+"_c"+channelCorrectionTxt.getText();
+		}
+		if (ori.getNSlices() > 1) {
+			suffixChanCorr = suffixChanCorr +"_s"+ori.getSlice();
+		}
+		if (ori.getNFrames() > 1) {
+			suffixChanCorr = suffixChanCorr+"_f"+ori.getFrame();
+		}
+		return getPathExt(ori, "Cells"+suffixChanCorr, "zip");
+	}
+	
+	/** Largest power of 2 not above the zoom out factor of the displayed image. */
+	private int getPreviewScale() {
+		ImageWindow win = resWin != null && resWin.isVisible() ? resWin : oriWin;
+		double magnification = win.getCanvas().getMagnification();
+		int scale = 1;
+		while (scale*2*magnification <= 1.0 && ori.getWidth()/(scale*2) >= MIN_PREVIEW_SIZE && ori.getHeight()/(scale*2) >= MIN_PREVIEW_SIZE) {
+			scale *= 2;
+		}
+		return scale;
+	}
+	
+	/** Visible part of res extended to the tile grid, or null if the whole image is visible. */
+	private Rectangle getViewportArea() {
+		if (resWin == null || !resWin.isVisible()) return null;
+		Rectangle src = resWin.getCanvas().getSrcRect();
+		int w = ori.getWidth(), h = ori.getHeight();
+		int x0 = src.x/TILE_SIZE*TILE_SIZE;
+		int y0 = src.y/TILE_SIZE*TILE_SIZE;
+		int x1 = Math.min(w, (src.x+src.width+TILE_SIZE-1)/TILE_SIZE*TILE_SIZE);
+		int y1 = Math.min(h, (src.y+src.height+TILE_SIZE-1)/TILE_SIZE*TILE_SIZE);
+		if (x0 == 0 && y0 == 0 && x1 == w && y1 == h) return null;
+		return new Rectangle(x0, y0, x1-x0, y1-y0);
+	}
+	
+	/** Distance in pixels up to which neighbours change the threshold of a pixel. */
+	private int getHalo(GCCProfile p) {
+		double sigma = 0, radius = 0;
+		switch(p.getInt("methodSelected")) {
+		case 0:
+			sigma = p.getDouble("gaussianSigmaAuto");
+			radius = p.getDouble("medianRadiusAuto");
+			break;
+		case 1:
+			sigma = p.getDouble("gaussianSigmaAutoLoc");
+			radius = p.getDouble("medianRadiusAutoLoc")+p.getDouble("localThRadius");
+			break;
+		case 2:
+			sigma = Math.max(p.getDouble("gaussianSigmaChast1"), p.getDouble("gaussianSigmaChast2"));
+			break;
+		}
+		// the Gaussian kernel is cut around 4 sigma
+		return (int)Math.ceil(4*Math.max(sigma, 0)/Math.min(cal.pixelWidth, cal.pixelHeight)+Math.max(radius, 0))+1;
+	}
+	
+	/** Re-runs the preview if the window now shows an area that was not processed, or needs a finer level. */
+	private void checkViewport() {
+		if (!preview.getState() || ori == null || doChanCorr || resWin == null || !resWin.isVisible() || folderThread != null) return;
+		Rectangle src = resWin.getCanvas().getSrcRect();
+		if ((previewArea != null && !previewArea.contains(src)) || getPreviewScale() < previewScale) {
+			process();
+		}
+	}
+	
+	/**
+	 * Levels of the whole plane for the parameters of p, taken once at the coarsest pyramid level,
+	 * whose mask is kept like any preview of the whole plane.
+	 */
+	private GCCPipeline.Levels getPlaneLevels(ImageProcessor plane, String key, GCCProfile p) {
+		GCCPipeline.Levels levels = planeLevels.get(key);
+		if (levels == null) {
+			int scale = 1;
+			while (plane.getWidth()/(scale*2) >= MIN_PREVIEW_SIZE && plane.getHeight()/(scale*2) >= MIN_PREVIEW_SIZE) {
+				scale *= 2;
+			}
+			Rectangle full = new Rectangle(0, 0, plane.getWidth(), plane.getHeight());
+			levels = new GCCPipeline.Levels();
+			computeMask(plane, full, full, scale, key, p, levels);
+			planeLevels.put(key, levels);
+		}
+		return levels;
+	}
+	
+	/**
+	 * Threshold of region of plane downsampled by scale, with touching cells split if asked.
+	 * inner is the area not affected by region borders. With recorded levels, region is thresholded with them,
+	 * with empty ones their levels are recorded.
+	 */
+	private GCCMaskCache.Entry computeMask(ImageProcessor plane, Rectangle region, Rectangle inner, int scale, String key, GCCProfile p,
+			GCCPipeline.Levels levels) {
+		GCCPipeline.Levels used = levels != null && levels.isRecorded() ? levels : null;
+		ImageProcessor ip = GCCBufferPool.copy(plane, region); // the threshold works in place
+		Calibration ipCal = cal;
+		double radiusScale = 1;
+		if (scale > 1) {
+			ImageProcessor crop = ip;
+			crop.setInterpolationMethod(ImageProcessor.BILINEAR);
+			ip = crop.resize(Math.max(crop.getWidth()/scale, 1), Math.max(crop.getHeight()/scale, 1), true);
+			GCCBufferPool.release(crop);
+			ipCal = cal.copy();
+			ipCal.pixelWidth *= (double)region.width/ip.getWidth();
+			ipCal.pixelHeight *= (double)region.height/ip.getHeight();
+			radiusScale = ((double)region.width/ip.getWidth()+(double)region.height/ip.getHeight())/2;
+		}
+		GCCBitMask mask;
+		try {
+			mask = pipeline.computeMask(ip, ipCal, radiusScale, p, levels);
+		} finally {
+			GCCBufferPool.release(ip);
+		}
+		GCCMaskCache.Entry entry = new GCCMaskCache.Entry(key, scale, region, inner, mask, used);
+		maskCache.put(entry);
+		return entry;
+	}
+	
+	/** Cells of the mask of entry, without those cut by the borders of its region. */
+	private GCCLabeling labelCells(GCCMaskCache.Entry entry, double[] sizeRange, double[] circularityRange) {
+		double pixelArea = cal.pixelWidth*cal.pixelHeight*entry.region.width*entry.region.height/(entry.mask.getWidth()*entry.mask.getHeight());
+		GCCLabeling lab = GCCPipeline.labelCells(entry.mask, sizeRange, circularityRange, pixelArea);
+		lab.removeBorderObjects(entry.region.x > 0, entry.region.y > 0,
+				entry.region.x+entry.region.width < ori.getWidth(), entry.region.y+entry.region.height < ori.getHeight());
+		return lab;
+	}
+	
+	/**
+	 * Computes the full resolution cells of preview and displays them if no other preview was asked meanwhile.
+	 * Refinements run one at a time, one still waiting is dropped for the new one,
+	 * and the one running stops between the steps of its threshold once its preview is replaced.
+	 */
+	private void refineInBackground(final ImageProcessor plane, final GCCMaskCache.Entry preview, final GCCProfile p,
+			final double[] sizeRange, final double[] circularityRange, final GCCSpans[] nuclei, final double[] cellSizeRange) {
+		final int generation = previewGeneration;
+		if (pendingRefinement != null) {
+			pendingRefinement.cancel(false);
+		}
+		pendingRefinement = refiner.submit(new Runnable() {
+			public void run() {
+				refinedGeneration.set(generation);
+				try {
+					checkRefinement();
+					// with the levels of the preview, so that a part of the plane is refined as it was previewed
+					final GCCMaskCache.Entry entry = computeMask(plane, preview.region, preview.inner, 1, preview.key, p, preview.levels);
+					checkRefinement();
+					final GCCLabeling lab = labelCells(entry, sizeRange, circularityRange);
+					EventQueue.invokeLater(new Runnable() {
+						public void run() {
+							if (generation != previewGeneration || !GCCProcess.this.preview.getState() || resWin == null || !resWin.isVisible()) return;
+							try {
+								showCells(entry, lab, nuclei, cellSizeRange);
+							} catch (NumberFormatException ex) {
+								logTxt.setText("Parameter is not a number");
 							}
 						}
-					}
-					j++;
+					});
+				} catch (NumberFormatException ex) {
+					// reported by the preview that started this refinement
+				} catch (CancellationException ex) {
+					// replaced by a newer preview
+				} finally {
+					refinedGeneration.remove();
 				}
-				
+			}
+		});
+	}
+	
+	/** Stops the background refinement running on this thread if its preview was replaced, nothing on other threads. */
+	private void checkRefinement() {
+		Integer generation = refinedGeneration.get();
+		if (generation != null && generation != previewGeneration) {
+			throw new CancellationException();
+		}
+	}
+	
+	private String getBackgroundParmName(int background, String number) {
+		switch(background) {
+		case 1:
+			return "WhiteTopHatRadius"+number;
+		case 2:
+			return "BlackTopHatRadius"+number;
+		default:
+			return "GaussianSigma"+number;
+		}
+	}
+	
+	private String getThresholdParmStr(GCCProfile p) {
+		switch(p.getInt("methodSelected")) {
+		case 0: // "Auto Threshold"
+			return ";"+getBackgroundParmName(p.getInt("backgroundAuto"), "")+":"+p.getDouble("gaussianSigmaAuto")+";MedianRadius:"+p.getDouble("medianRadiusAuto")
+					+";AutoThMethod:"+GCCPipeline.AUTO_THRESHOLD_METHODS[p.getInt("autoThMethodSelected")]+";;;";
+		case 1: // "Auto Local Threshold"
+			String str = ";"+getBackgroundParmName(p.getInt("backgroundAutoLoc"), "")+":"+p.getDouble("gaussianSigmaAutoLoc")+";MedianRadius:"+p.getDouble("medianRadiusAutoLoc")
+					+";LocalThRadius:"+p.getDouble("localThRadius")+";LocalThMethod:"+GCCPipeline.AUTO_LOCAL_THRESHOLD_METHODS[p.getInt("autoLocalThMethodSelected")];
+			switch(p.getInt("autoLocalThMethodSelected")) {
+			case 0:
+				return str+";ContrastTh:"+p.get("localBernsenParm1")+";";
+			case 2:
+				return str+";Offset:"+p.get("localMeanParm1")+";";
+			case 3:
+				return str+";Offset:"+p.get("localMedianParm1")+";";
+			case 4:
+				return str+";Offset:"+p.get("localMidGreyParm1")+";";
+			case 5:
+				return str+";k value:"+p.get("localNiblackParm1")+";Offset:"+p.get("localNiblackParm2");
+			case 7:
+				return str+";k value:"+p.get("localPhansalkarParm1")+";r value:"+p.get("localPhansalkarParm2");
+			case 8:
+				return str+";k value:"+p.get("localSauvolaParm1")+";r value:"+p.get("localSauvolaParm2");
+			default:
+				return str+";;";
+			}
+		case 2: // Chastagnier Threshold
+			return ";"+getBackgroundParmName(p.getInt("backgroundChast"), "1")+":"+p.get("gaussianSigmaChast1")
+					+";"+getBackgroundParmName(p.getInt("backgroundChast"), "2")+":"+p.get("gaussianSigmaChast2")+";;;;";
+		default:
+			return null;
+		}
+	}
+	
+	/** Current values of the parameter fields, named like their preferences. */
+	private GCCProfile getProfile() {
+		GCCProfile p = new GCCProfile();
+		p.set("methodSelected", methodSelected);
+		p.set("autoThMethodSelected", autoThMethod.getSelectedIndex());
+		p.set("autoLocalThMethodSelected", autoLocalThMethodSelected);
+		p.set("backgroundAuto", backgroundAuto.getSelectedIndex());
+		p.set("backgroundAutoLoc", backgroundAutoLoc.getSelectedIndex());
+		p.set("backgroundChast", backgroundChast.getSelectedIndex());
+		TextField[] fields = getProfileTextFields();
+		for (int i = 0; i < fields.length; i++) {
+			p.set(profileTextFieldNames[i], fields[i].getText());
+		}
+		Checkbox[] checkboxes = getProfileCheckboxes();
+		for (int i = 0; i < checkboxes.length; i++) {
+			p.set(profileCheckboxNames[i], checkboxes[i].getState());
+		}
+		return p;
+	}
+	
+	/** Displays the values of p in the parameter fields. */
+	private void setProfile(GCCProfile p) {
+		updateElementsFrame(methodSelected, false);
+		methodSelected = p.getInt("methodSelected");
+		autoThMethodSelected = p.getInt("autoThMethodSelected");
+		autoLocalThMethodSelected = p.getInt("autoLocalThMethodSelected");
+		method.select(methodSelected);
+		autoThMethod.select(autoThMethodSelected);
+		autoLocalThMethod.select(autoLocalThMethodSelected);
+		backgroundAuto.select(p.getInt("backgroundAuto"));
+		backgroundAutoLoc.select(p.getInt("backgroundAutoLoc"));
+		backgroundChast.select(p.getInt("backgroundChast"));
+		TextField[] fields = getProfileTextFields();
+		for (int i = 0; i < fields.length; i++) {
+			if (p.has(profileTextFieldNames[i])) fields[i].setText(p.get(profileTextFieldNames[i]));
+		}
+		Checkbox[] checkboxes = getProfileCheckboxes();
+		for (int i = 0; i < checkboxes.length; i++) {
+			if (p.has(profileCheckboxNames[i])) checkboxes[i].setState(p.getBoolean(profileCheckboxNames[i]));
+		}
+		updateElementsFrame(methodSelected, true);
+		boolean display = channelCorrection.getState();
+		updateElementFrame(channelCorrectionLabel, 	1, 93,	1, 1,	1, 1,	0, 0, display);
+		updateElementFrame(channelCorrectionTxt, 	2, 93,	1, 1,	1, 1,	0, 0, display);
+		updateBackgroundLabels();
+		frame.pack();
+	}
+	
+	private final String[] profileTextFieldNames = {"gaussianSigmaAuto", "medianRadiusAuto", "gaussianSigmaAutoLoc", "medianRadiusAutoLoc", "localThRadius",
+			"localBernsenParm1", "localMeanParm1", "localMedianParm1", "localMidGreyParm1", "localNiblackParm1", "localNiblackParm2",
+			"localPhansalkarParm1", "localPhansalkarParm2", "localSauvolaParm1", "localSauvolaParm2", "gaussianSigmaChast1", "gaussianSigmaChast2",
+			"cellSize", "cellCircularity", "minDistance", "channelCorrection"};
+	
+	private TextField[] getProfileTextFields() { // in the order of profileTextFieldNames
+		return new TextField[] {gaussianSigmaAutoTxt, medianRadiusAutoTxt, gaussianSigmaAutoLocTxt, medianRadiusAutoLocTxt, localThRadiusTxt,
+				localBernsenParm1Txt, localMeanParm1Txt, localMedianParm1Txt, localMidGreyParm1Txt, localNiblackParm1Txt, localNiblackParm2Txt,
+				localPhansalkarParm1Txt, localPhansalkarParm2Txt, localSauvolaParm1Txt, localSauvolaParm2Txt, gaussianSigmaChast1Txt, gaussianSigmaChast2Txt,
+				cellSizeTxt, cellCircularityTxt, minDistanceTxt, channelCorrectionTxt};
+	}
+	
+	private final String[] profileCheckboxNames = {"ignoreBlack", "ignoreWhite", "splitCells", "whiteBackground", "channelCorrectionEnabled"};
+	
+	private Checkbox[] getProfileCheckboxes() { // in the order of profileCheckboxNames
+		return new Checkbox[] {ignoreBlack, ignoreWhite, splitCells, whiteBackground, channelCorrection};
+	}
+	
+	/**
+	 * Displays the mask of entry and the cells of lab on res, measured in full resolution pixels.
+	 * Outside the region of entry, res is left black.
+	 */
+	private void showCells(GCCMaskCache.Entry entry, GCCLabeling lab, GCCSpans[] nuclei, double[] cellSizeRange) {
+		setCells(lab);
+		previewScale = entry.scale;
+		Rectangle region = entry.region;
+		double sx = (double)region.width/entry.mask.getWidth(), sy = (double)region.height/entry.mask.getHeight();
+		showMask(entry);
+		int nCells = cells.getCount();
+		cellRois = new Roi[nCells];
+		for (int iCell = 0; iCell < nCells; iCell++) {
+			Roi roi = cells.getRoi(iCell); // outlines are only traced here, to be displayed
+			if (sx != 1 || sy != 1) {
+				roi = RoiScaler.scale(roi, sx, sy, false);
+			}
+			if (region.x != 0 || region.y != 0) {
+				roi = (Roi)roi.clone();
+				Rectangle b = roi.getBounds();
+				roi.setLocation(b.x+region.x, b.y+region.y);
+			}
+			cellRois[iCell] = roi;
+		}
+		GCCPipeline.Counts counts = GCCPipeline.countCells(cells, sx, sy, region.x, region.y, cal, doChanCorr ? nuclei : null,
+				Double.parseDouble(minDistanceTxt.getText()), cellSizeRange);
+		xCell = counts.x;
+		yCell = counts.y;
+		areaCell = counts.area;
+		nucleusInCell = counts.nucleusInCell;
+		nucleusInCellPos = counts.nucleusInCellPos;
+		dupCell = counts.duplicate;
+		countCell = counts.count;
+		drawCells();
+		if (sx != 1 || sy != 1) {
+			logTxt.setText("Low resolution preview displayed, refining. "+getObjectCount()+" object(s) detected.");
+		} else if (previewArea != null) {
+			logTxt.setText("Preview of the visible area displayed. "+getObjectCount()+" object(s) detected.");
+		} else {
+			logTxt.setText("Preview displayed. "+getObjectCount()+" object(s) detected.");
+		}
+	}
+	
+	/** Replaces the cells, the label image of the previous ones is given back unless kept for the results. */
+	private void setCells(GCCLabeling lab) {
+		if (cells != null && cells != lab && (lastCells == null || cells != lastCells.cells)) {
+			cells.release(); // outlines of the previous cells were all traced when they were shown
+		}
+		cells = lab;
+	}
+	
+	/** Shows the mask of entry on res at full resolution, black outside the region of entry. */
+	private void showMask(GCCMaskCache.Entry entry) {
+		Rectangle region = entry.region;
+		ImageProcessor mask = entry.mask.toByteProcessor();
+		if (mask.getWidth() != region.width || mask.getHeight() != region.height) { // display at full resolution
+			mask.setInterpolationMethod(ImageProcessor.NONE);
+			mask = mask.resize(region.width, region.height);
+		}
+		if (region.width != ori.getWidth() || region.height != ori.getHeight()) {
+			ImageProcessor fullMask = new ByteProcessor(ori.getWidth(), ori.getHeight());
+			fullMask.insert(mask, region.x, region.y);
+			mask = fullMask;
+		}
+		res.setProcessor(mask);
+		
+		if (resWin == null || !resWin.isVisible()) {
+			ImageWindow.setNextLocation((int)resPosX, (int)resPosY);
+			res.show();
+			resWin = res.getWindow();
+		} else {
+			double magnification = resWin.getCanvas().getMagnification();
+			Rectangle rect = resWin.getCanvas().getSrcRect();
+			resWin.setImage(res);
+			resWin.getCanvas().setSourceRect(rect);
+			resWin.getCanvas().setMagnification(magnification);
+		}
+	}
+	
+	/**
+	 * Cells drawn on res as a single overlay, duplicates in yellow and others in red.
+	 * Cells removed by the channel correction are not drawn.
+	 */
+	private void drawCells() {
+		Overlay overlay = new Overlay();
+		for (int iCell = 0; iCell < cellRois.length; iCell++) {
+			if (countCell[iCell] == 0 && !dupCell[iCell]) continue;
+			Roi roi = cellRois[iCell];
+			roi.setFillColor(dupCell[iCell] ? Color.yellow : Color.red);
+			overlay.add(roi);
+		}
+		res.setOverlay(overlay);
+	}
+	
+	/** Marks duplicates again after a change of the minimal distance, without processing the image. */
+	private boolean redrawDuplicates() {
+		if (res == null || resWin == null || !resWin.isVisible() || doChanCorr || cellRois.length != xCell.length) return false;
+		try {
+			dupCell = GCCPipeline.areCellDuplicates(xCell, yCell, areaCell, Double.parseDouble(minDistanceTxt.getText()));
+		} catch (NumberFormatException ex) {
+			logTxt.setText("Parameter is not a number");
+			return true;
+		}
+		for (int i = 0; i < countCell.length; i++) {
+			countCell[i] = dupCell[i] ? 0 : 1;
+		}
+		drawCells();
+		logTxt.setText("Duplicates updated. "+getObjectCount()+" object(s) detected.");
+		return true;
+	}
+	
+	/** Number of objects saved in the cells zip file: duplicates once, cells of several nuclei once per cell counted. */
+	private int getObjectCount() {
+		int n = 0;
+		for (int iCell = 0; iCell < countCell.length; iCell++) {
+			n += countCell[iCell] > 0 ? countCell[iCell] : dupCell[iCell] ? 1 : 0;
+		}
+		return n;
+	}
+	
+	/** Outlines of the objects counted in getObjectCount, named like the ROI Manager names them. */
+	private Roi[] getObjectRois() {
+		Roi[] rois = new Roi[getObjectCount()];
+		Set<String> names = new HashSet<String>();
+		int digits = Math.max(4, String.valueOf(Math.max(ori.getWidth(), ori.getHeight())).length());
+		int n = 0;
+		for (int iCell = 0; iCell < countCell.length; iCell++) {
+			int copies = countCell[iCell] > 0 ? countCell[iCell] : dupCell[iCell] ? 1 : 0;
+			Rectangle b = cellRois[iCell].getBounds();
+			String name = pad(b.y+b.height/2, digits)+"-"+pad(b.x+b.width/2, digits);
+			for (int k = 0; k < copies; k++) {
+				Roi roi = (Roi)cellRois[iCell].clone();
+				String unique = name;
+				for (int suffix = 1; !names.add(unique); suffix++) {
+					unique = name+"-"+suffix;
+				}
+				roi.setName(unique);
+				rois[n++] = roi;
 			}
 		}
-		return isDuplicate;
+		return rois;
+	}
+	
+	private static String pad(int value, int digits) {
+		String str = String.valueOf(value);
+		while (str.length() < digits) {
+			str = "0"+str;
+		}
+		return str;
 	}
 	
 	private RoiManager getRM() {
@@ -1084,6 +2059,11 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	
 	public void windowOpened(WindowEvent e) {}
 	public void windowClosing(WindowEvent e) {
+		if (folderThread != null) { // the window still serves the folder thread
+			folderCanceled = true;
+			logTxt.setText("Folder canceled after the plane being saved, close the window then.");
+			return;
+		}
 		ij.Prefs.set("GCC.methodSelected", methodSelected);
 		ij.Prefs.set("GCC.autoThMethodSelected", autoThMethodSelected);
 		ij.Prefs.set("GCC.gaussianSigmaAuto", gaussianSigmaAutoTxt.getText());
@@ -1107,7 +2087,15 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		ij.Prefs.set("GCC.cellSize", cellSizeTxt.getText());
 		ij.Prefs.set("GCC.cellCircularity", cellCircularityTxt.getText());
 		ij.Prefs.set("GCC.minDistance", minDistanceTxt.getText());
+		ij.Prefs.set("GCC.splitCells", splitCells.getState());
+		ij.Prefs.set("GCC.mergeSlices", mergeSlices.getState());
 		ij.Prefs.set("GCC.channelCorrection", channelCorrectionTxt.getText());
+		ij.Prefs.set("GCC.cellTableSelected", cellTableSelected);
+		ij.Prefs.set("GCC.measureChannels", measureChannels.getState());
+		ij.Prefs.set("GCC.backgroundAuto", backgroundAuto.getSelectedIndex());
+		ij.Prefs.set("GCC.backgroundAutoLoc", backgroundAutoLoc.getSelectedIndex());
+		ij.Prefs.set("GCC.backgroundChast", backgroundChast.getSelectedIndex());
+		viewportTimer.stop();
 		closeOriRes();
 		getRM(false);
 		Window w = WindowManager.getWindow("Results");
@@ -1165,6 +2153,11 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 	}
 	
 	private void closeOriRes() {
+		maskCache.clear();
+		planeLevels.clear();
+		lastCells = null;
+		lastEntry = null;
+		GCCBufferPool.clear();
 		if (ori != null) {
 			if (oriWin != null) {
 				oriPosX = oriWin.getLocation().getX();
@@ -1172,6 +2165,9 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 				ij.Prefs.set("GCC.oriPosX", oriPosX);
 				ij.Prefs.set("GCC.oriPosY", oriPosY);
 			}
+			if (ori.getStack() instanceof GCCPlaneCache) {
+				((GCCPlaneCache)ori.getStack()).dispose();
+			}
 			ori.changes = false;
 			ori.close();
 			ori = null;
@@ -1202,15 +2198,4 @@ class GCCProcess implements ActionListener, ItemListener, TextListener, WindowLi
 		ImageWindow.setNextLocation((int)(normalizedX*screenWidth), (int)(normalizedY*screenHeight));
 		imp.show();
 	}
-	
-	private static String getCommand(String cmdVal) {
-		String res = IJ.runMacro("str = getArgument(); List.setCommands; List.toArrays(keys, values);"+
-		"for (i = 0; i < values.length; i++) {if (endsWith(values[i], str)) {return keys[i];}}", cmdVal);
-		if (res == null) {
-			res = cmdVal+" plugin not found.\nInstall the plugin and restart the application to use it.";
-		}
-		return res;
-	}
 }
-
-